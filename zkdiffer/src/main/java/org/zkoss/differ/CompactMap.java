@@ -0,0 +1,298 @@
+/* CompactMap.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		10:50 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.zkoss.lang.Objects;
+
+/**
+ * An array-backed map of the string keys for the snapshots of component features,
+ * which stores the keys in a sorted array and the values in a parallel array,
+ * instead of the hash table and the entry objects of {@link java.util.HashMap}.
+ * <p>The values are stored as they are, i.e. the primitive property values stay
+ * boxed, so it saves the table and the entries only, not the values.
+ * <p>The lookup is a binary search, which is fast enough for a handful of entries,
+ * and both maps can be compared entry by entry in the sorted order.
+ * <p>Note: the null key isn't supported.
+ * @author jumperchen
+ */
+/*package*/ final class CompactMap<V> extends AbstractMap<String, V> implements Cloneable {
+	private static final String[] EMPTY_KEYS = new String[0];
+	private static final Object[] EMPTY_VALUES = new Object[0];
+
+	private String[] _keys;
+	private Object[] _values;
+	private int _size;
+	private int _modCount;
+	private volatile boolean _shared;
+
+	/*package*/ CompactMap() {
+		_keys = EMPTY_KEYS;
+		_values = EMPTY_VALUES;
+	}
+
+	/*package*/ CompactMap(Map<String, ? extends V> map) {
+		if (map instanceof CompactMap) {
+			CompactMap<?> other = (CompactMap<?>) map;
+			_size = other._size;
+			_keys = Arrays.copyOf(other._keys, _size);
+			_values = Arrays.copyOf(other._values, _size);
+		} else {
+			_keys = new String[map.size()];
+			_values = new Object[map.size()];
+			for (Map.Entry<String, ? extends V> me : map.entrySet()) {
+				put(me.getKey(), me.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the key at the given index in the sorted order.
+	 */
+	/*package*/ String keyAt(int index) {
+		return _keys[index];
+	}
+
+	/**
+	 * Returns the value at the given index in the sorted order.
+	 */
+	@SuppressWarnings("unchecked")
+	/*package*/ V valueAt(int index) {
+		return (V) _values[index];
+	}
+
+	private int indexOf(Object key) {
+		if (!(key instanceof String)) {
+			return -1;
+		}
+		int low = 0, high = _size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			String midKey = _keys[mid];
+			if (midKey == key) {
+				return mid;
+			}
+			int cmp = midKey.compareTo((String) key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	public V get(Object key) {
+		int index = indexOf(key);
+		return index >= 0 ? valueAt(index) : null;
+	}
+
+	public V put(String key, V value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			V old = valueAt(index);
+			_values[index] = value;
+			return old;
+		}
+		if (key == null) {
+			throw new NullPointerException("The null key isn't supported");
+		}
+		index = -index - 1;
+		if (_size == _keys.length) {
+			int capacity = Math.max(4, _size + (_size >> 1));
+			_keys = Arrays.copyOf(_keys, capacity);
+			_values = Arrays.copyOf(_values, capacity);
+		}
+		System.arraycopy(_keys, index, _keys, index + 1, _size - index);
+		System.arraycopy(_values, index, _values, index + 1, _size - index);
+		_keys[index] = key;
+		_values[index] = value;
+		_size++;
+		_modCount++;
+		return null;
+	}
+
+	public V remove(Object key) {
+		int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		V old = valueAt(index);
+		removeAt(index);
+		return old;
+	}
+
+	private void removeAt(int index) {
+		int moved = _size - index - 1;
+		System.arraycopy(_keys, index + 1, _keys, index, moved);
+		System.arraycopy(_values, index + 1, _values, index, moved);
+		_size--;
+		_keys[_size] = null;
+		_values[_size] = null;
+		_modCount++;
+	}
+
+	public void clear() {
+		Arrays.fill(_keys, 0, _size, null);
+		Arrays.fill(_values, 0, _size, null);
+		_size = 0;
+		_modCount++;
+	}
+
+	/**
+	 * Trims the capacity to the size, after a snapshot is rendered.
+	 */
+	/*package*/ void trimToSize() {
+		if (_keys.length != _size) {
+			_keys = _size == 0 ? EMPTY_KEYS : Arrays.copyOf(_keys, _size);
+			_values = _size == 0 ? EMPTY_VALUES : Arrays.copyOf(_values, _size);
+		}
+	}
+
+	/**
+	 * Marks this map as shared by the clones of a component feature, which is
+	 * copied on write then.
+	 */
+	/*package*/ void share() {
+		_shared = true;
+	}
+
+	/**
+	 * Returns whether this map is shared by the clones of a component feature.
+	 */
+	/*package*/ boolean isShared() {
+		return _shared;
+	}
+
+	/**
+	 * Returns whether both maps have the same entries, by comparing entry by
+	 * entry in the sorted order.
+	 */
+	/*package*/ boolean equalsCompact(CompactMap<?> other) {
+		if (_size != other._size) {
+			return false;
+		}
+		for (int i = 0; i < _size; i++) {
+			if (!_keys[i].equals(other._keys[i])
+					|| !Objects.equals(_values[i], other._values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public CompactMap<V> clone() {
+		return new CompactMap<>(this);
+	}
+
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new EntryIterator();
+			}
+
+			public int size() {
+				return _size;
+			}
+		};
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+		private int _next;
+		private int _last = -1;
+		private int _expectedModCount = _modCount;
+
+		public boolean hasNext() {
+			return _next < _size;
+		}
+
+		public Map.Entry<String, V> next() {
+			if (_expectedModCount != _modCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (_next >= _size) {
+				throw new NoSuchElementException();
+			}
+			_last = _next++;
+			return new Entry(_last);
+		}
+
+		public void remove() {
+			if (_last < 0) {
+				throw new IllegalStateException();
+			}
+			if (_expectedModCount != _modCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(_last);
+			_next = _last;
+			_last = -1;
+			_expectedModCount = _modCount;
+		}
+	}
+
+	private class Entry implements Map.Entry<String, V> {
+		private final int _index;
+
+		private Entry(int index) {
+			_index = index;
+		}
+
+		public String getKey() {
+			return _keys[_index];
+		}
+
+		public V getValue() {
+			return valueAt(_index);
+		}
+
+		public V setValue(V value) {
+			V old = valueAt(_index);
+			_values[_index] = value;
+			return old;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			return getKey().equals(e.getKey()) && Objects.equals(getValue(), e.getValue());
+		}
+
+		public int hashCode() {
+			return getKey().hashCode() ^ Objects.hashCode(getValue());
+		}
+
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
@@ -13,49 +13,94 @@ package org.zkoss.differ;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import org.zkoss.lang.Objects;
 import org.zkoss.zk.ui.Component;
 import org.zkoss.zk.ui.ShadowElement;
+import org.zkoss.zk.ui.UiException;
 import org.zkoss.zk.ui.ext.DynamicPropertied;
 import org.zkoss.zk.ui.sys.ComponentCtrl;
 import org.zkoss.zk.ui.sys.ContentRenderer;
 
 /**
  * Represents a feature of a ZK component for diffing.
+ * <p>Note: the maps and the children returned by the getters, e.g. {@link #getAttributes()}
+ * and {@link #getChildren()}, are read-only views, and changing them throws
+ * {@link UnsupportedOperationException}, because the containers may be shared with
+ * the clones of this instance, see {@link #clone()}. Change them by the setters,
+ * e.g. {@link #setAttribute(String, Object)}, instead, and get them again afterwards,
+ * since a setter may replace the container of a view got before.
  * @author jumperchen
  */
 public class ComponentFeature implements Cloneable {
+	private static final Logger _logger = LoggerFactory.getLogger(ComponentFeature.class);
+
 	private Feature _feature;
 	private String _widgetName;
 
 	private Component _owner;
-	private List<ComponentFeature> _children = new ArrayList<>();
+	private Children _children = new Children(0);
+	// the children to build on first access, shared with the clones, see #buildNested()
+	private PendingChildren _pendingChildren;
 
-	private Map<String, Object> _attributes;
-	private Map<String, Object> _dynamicProperties;
+	private CompactMap<Object> _attributes;
+	private CompactMap<Object> _dynamicProperties;
 	/*package*/ boolean outerDone;
 	/*package*/ boolean innerDone;
 
-	private ComponentFeature(Feature feature, String widgetName, Component owner) {
+	// the cached structural hash of this subtree, see #structuralHash()
+	private int _hash;
+	private int _size;
+	// written after _hash and _size, so the forked diff tasks see both once it's true
+	private volatile boolean _hashValid;
+
+	// the cached descriptors, see #getDescriptors() and #getDescriptorSymbols()
+	private List<String> _descriptors;
+	// published as a whole, the forked diff tasks may intern it by their own tables
+	private volatile DescriptorSymbols _descriptorSymbols;
+
+	private ComponentFeature(Feature feature, String widgetName, Component owner,
+			@Nullable PropertyFilter filter) {
 		_feature = feature;
 		_widgetName = widgetName;
 		_owner = owner;
-		_attributes = new HashMap<>(owner.getAttributes());
-		_dynamicProperties = Optional.ofNullable(
+		_attributes = copyOf(owner.getAttributes(), widgetName, filter, PropertyFilter.Type.ATTRIBUTE);
+		// copy it, the owner may be a live component
+		_dynamicProperties = copyOf(Optional.ofNullable(
 				owner instanceof DynamicPropertied
 						? ((DynamicPropertied) owner).getDynamicProperties() :
-						new HashMap<String, Object>(0)).orElse(new HashMap<>(0));
+						null).orElse(Collections.emptyMap()),
+				widgetName, filter, PropertyFilter.Type.DYNAMIC_PROPERTY);
+	}
+
+	/**
+	 * Copies the given map without the entries rejected by the filter, if any.
+	 */
+	private static <V> CompactMap<V> copyOf(Map<String, ? extends V> map, String widgetName,
+			@Nullable PropertyFilter filter, PropertyFilter.Type type) {
+		if (filter == null) {
+			return new CompactMap<>(map);
+		}
+		CompactMap<V> copy = new CompactMap<>();
+		for (Map.Entry<String, ? extends V> me : map.entrySet()) {
+			if (filter.accept(widgetName, type, me.getKey())) {
+				copy.put(me.getKey(), me.getValue());
+			}
+		}
+		copy.trimToSize();
+		return copy;
 	}
 
 	/**
@@ -95,10 +140,11 @@ public class ComponentFeature implements Cloneable {
 	}
 
 	/**
-	 * Returns all component dynamic properties
+	 * Returns all component dynamic properties (read-only)
+	 * <p>Change them by {@link #setDynamicProperty(String, Object)} instead.
 	 */
 	public Map<String, Object> getDynamicProperties() {
-		return _dynamicProperties;
+		return Collections.unmodifiableMap(_dynamicProperties);
 	}
 
 	/**
@@ -107,7 +153,8 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setDynamicProperty(String name, Object value) {
-		_dynamicProperties.put(name, value);
+		invalidateHash();
+		writableDynamicProperties().put(name, value);
 	}
 
 	/**
@@ -116,14 +163,16 @@ public class ComponentFeature implements Cloneable {
 	 * @return the origin value if any.
 	 */
 	public Object removeDynamicProperty(String name) {
-		return _dynamicProperties.remove(name);
+		invalidateHash();
+		return writableDynamicProperties().remove(name);
 	}
 
 	/**
-	 * Returns all component attributes
+	 * Returns all component attributes (read-only)
+	 * <p>Change them by {@link #setAttribute(String, Object)} instead.
 	 */
 	public Map<String, Object> getAttributes() {
-		return _attributes;
+		return Collections.unmodifiableMap(_attributes);
 	}
 
 	/**
@@ -132,7 +181,8 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setAttribute(String name, Object value) {
-		_attributes.put(name, value);
+		invalidateHash();
+		writableAttributes().put(name, value);
 	}
 
 	/**
@@ -141,14 +191,16 @@ public class ComponentFeature implements Cloneable {
 	 * @return the origin value if any.
 	 */
 	public Object removeAttribute(String name) {
-		return _attributes.remove(name);
+		invalidateHash();
+		return writableAttributes().remove(name);
 	}
 
 	/**
-	 * Returns all properties generated by {@link ComponentCtrl#renderPropertiesOnly(ContentRenderer)}
+	 * Returns all properties generated by {@link ComponentCtrl#renderPropertiesOnly(ContentRenderer)} (read-only)
+	 * <p>Change them by {@link #setProperty(String, Object)} instead.
 	 */
 	public Map<String, Object> getProperties() {
-		return _feature._properties;
+		return Collections.unmodifiableMap(_feature._properties);
 	}
 
 	/**
@@ -157,7 +209,9 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setProperty(String name, Object value) {
-		_feature._properties.put(name, value);
+		invalidateHash();
+		invalidateDescriptors();
+		writableFeature()._properties.put(name, value);
 	}
 
 	/**
@@ -166,14 +220,17 @@ public class ComponentFeature implements Cloneable {
 	 * @return the origin value if any.
 	 */
 	public Object removeProperty(String name) {
-		return _feature._properties.remove(name);
+		invalidateHash();
+		invalidateDescriptors();
+		return writableFeature()._properties.remove(name);
 	}
 
 	/**
-	 * Returns all widget overrides
+	 * Returns all widget overrides (read-only), if any.
+	 * <p>Change them by {@link #setWidgetOverride(String, String)} instead.
 	 */
 	public Map<String, String> getWidgetOverrides() {
-		return _feature._overrides;
+		return readOnly(_feature._overrides);
 	}
 
 	/**
@@ -182,10 +239,12 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setWidgetOverride(String name, String value) {
-		if (_feature._overrides == null) {
-			_feature._overrides = new HashMap<>(4);
+		Feature feature = writableFeature();
+		if (feature._overrides == null) {
+			feature._overrides = new CompactMap<>();
 		}
-		_feature._overrides.put(name, value);
+		invalidateHash();
+		feature._overrides.put(name, value);
 	}
 
 	/**
@@ -195,14 +254,16 @@ public class ComponentFeature implements Cloneable {
 	 */
 	public Object removeWidgetOverride(String name) {
 		if (_feature._overrides == null) return null;
-		return _feature._overrides.remove(name);
+		invalidateHash();
+		return writableFeature()._overrides.remove(name);
 	}
 
 	/**
-	 * Returns all client attributes
+	 * Returns all client attributes (read-only), if any.
+	 * <p>Change them by {@link #setClientAttribute(String, String)} instead.
 	 */
 	public Map<String, String> getClientAttributes() {
-		return _feature._clientAttrs;
+		return readOnly(_feature._clientAttrs);
 	}
 
 	/**
@@ -211,10 +272,12 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setClientAttribute(String name, String value) {
-		if (_feature._clientAttrs == null) {
-			_feature._clientAttrs = new HashMap<>(4);
+		Feature feature = writableFeature();
+		if (feature._clientAttrs == null) {
+			feature._clientAttrs = new CompactMap<>();
 		}
-		_feature._clientAttrs.put(name, value);
+		invalidateHash();
+		feature._clientAttrs.put(name, value);
 	}
 
 	/**
@@ -224,14 +287,16 @@ public class ComponentFeature implements Cloneable {
 	 */
 	public Object removeClientAttribute(String name) {
 		if (_feature._clientAttrs == null) return null;
-		return _feature._clientAttrs.remove(name);
+		invalidateHash();
+		return writableFeature()._clientAttrs.remove(name);
 	}
 
 	/**
-	 * Returns all widget attributes
+	 * Returns all widget attributes (read-only), if any.
+	 * <p>Change them by {@link #setWidgetAttribute(String, String)} instead.
 	 */
 	public Map<String, String> getWidgetAttributes() {
-		return _feature._widgetAttrs;
+		return readOnly(_feature._widgetAttrs);
 	}
 
 	/**
@@ -240,10 +305,12 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setWidgetAttribute(String name, String value) {
-		if (_feature._widgetAttrs == null) {
-			_feature._widgetAttrs = new HashMap<>(4);
+		Feature feature = writableFeature();
+		if (feature._widgetAttrs == null) {
+			feature._widgetAttrs = new CompactMap<>();
 		}
-		_feature._widgetAttrs.put(name, value);
+		invalidateHash();
+		feature._widgetAttrs.put(name, value);
 	}
 
 	/**
@@ -255,14 +322,16 @@ public class ComponentFeature implements Cloneable {
 		if (_feature._widgetAttrs == null) {
 			return null;
 		}
-		return _feature._widgetAttrs.remove(name);
+		invalidateHash();
+		return writableFeature()._widgetAttrs.remove(name);
 	}
 
 	/**
-	 * Returns all widget listeners
+	 * Returns all widget listeners (read-only), if any.
+	 * <p>Change them by {@link #setWidgetListener(String, String)} instead.
 	 */
 	public Map<String, String> getWidgetListeners() {
-		return _feature._widgetListeners;
+		return readOnly(_feature._widgetListeners);
 	}
 
 	/**
@@ -271,10 +340,12 @@ public class ComponentFeature implements Cloneable {
 	 * @param value
 	 */
 	public void setWidgetListener(String name, String value) {
-		if (_feature._widgetListeners == null) {
-			_feature._widgetListeners = new HashMap<>(4);
+		Feature feature = writableFeature();
+		if (feature._widgetListeners == null) {
+			feature._widgetListeners = new CompactMap<>();
 		}
-		_feature._widgetListeners.put(name, value);
+		invalidateHash();
+		feature._widgetListeners.put(name, value);
 	}
 
 	/**
@@ -286,7 +357,8 @@ public class ComponentFeature implements Cloneable {
 		if (_feature._widgetListeners == null) {
 			return null;
 		}
-		return _feature._widgetListeners.remove(name);
+		invalidateHash();
+		return writableFeature()._widgetListeners.remove(name);
 	}
 
 	/**
@@ -294,7 +366,8 @@ public class ComponentFeature implements Cloneable {
 	 * @param newChild a component feature as a child of this instance.
 	 */
 	public void appendChild(ComponentFeature newChild) {
-		_children.add(newChild);
+		invalidateHash();
+		writableChildren().add(newChild);
 	}
 
 	/**
@@ -303,7 +376,8 @@ public class ComponentFeature implements Cloneable {
 	 * @param newChild a component feature as a child of this instance.
 	 */
 	public void addChild(int index, ComponentFeature newChild) {
-		_children.add(index, newChild);
+		invalidateHash();
+		writableChildren().add(index, newChild);
 	}
 
 	/**
@@ -312,23 +386,200 @@ public class ComponentFeature implements Cloneable {
 	 * @return the origin child.
 	 */
 	public ComponentFeature removeChild(int index) {
-		return _children.remove(index);
+		invalidateHash();
+		return writableChildren().remove(index);
+	}
+
+	/**
+	 * Moves the group of the children from the given index to the given index,
+	 * as if the group is removed first and then inserted at the given index,
+	 * which rotates the children in between in place.
+	 * @param from the index of the first child of the group
+	 * @param length the length of the group
+	 * @param to the index to insert the group after the group is removed
+	 */
+	/*package*/ void relocateChildren(int from, int length, int to) {
+		if (from == to || length == 0) {
+			return;
+		}
+		invalidateHash();
+		List<ComponentFeature> children = writableChildren();
+		if (from < to) {
+			Collections.rotate(children.subList(from, to + length), -length);
+		} else {
+			Collections.rotate(children.subList(to, from + length), length);
+		}
 	}
 
 	/**
 	 * Replaces a child from the given index and new child.
 	 */
 	public void replaceChild(int index, ComponentFeature newChild) {
-		_children.set(index, newChild);
+		invalidateHash();
+		writableChildren().set(index, newChild);
 	}
 
 	/**
-	 * Returns all children of this instance.
+	 * Returns all children of this instance (read-only)
+	 * <p>Change them by {@link #appendChild(ComponentFeature)}, {@link #addChild(int, ComponentFeature)},
+	 * {@link #removeChild(int)} and {@link #replaceChild(int, ComponentFeature)} instead.
+	 * Note: the children may be shared with the clones of this instance, so change
+	 * a clone of a child and replace it, rather than the child itself.
 	 */
 	public List<ComponentFeature> getChildren() {
+		return Collections.unmodifiableList(children());
+	}
+
+	private static Map<String, String> readOnly(@Nullable Map<String, String> map) {
+		return map != null ? Collections.unmodifiableMap(map) : null;
+	}
+
+	private Feature writableFeature() {
+		if (_feature._shared) {
+			_feature = _feature.clone();
+		}
+		return _feature;
+	}
+
+	private Map<String, Object> writableAttributes() {
+		if (_attributes.isShared()) {
+			_attributes = new CompactMap<>(_attributes);
+		}
+		return _attributes;
+	}
+
+	private Map<String, Object> writableDynamicProperties() {
+		if (_dynamicProperties.isShared()) {
+			_dynamicProperties = new CompactMap<>(_dynamicProperties);
+		}
+		return _dynamicProperties;
+	}
+
+	/**
+	 * Returns the children to change, which are copied first if they're shared
+	 * with the clones of this instance, e.g. to patch a descendant virtually.
+	 */
+	/*package*/ List<ComponentFeature> writableChildren() {
+		if (_pendingChildren != null) {
+			buildChildren();
+		}
+		if (_children._shared) {
+			// the children are mutable as well, so clone them (in O(1) each)
+			Children children = new Children(_children.size());
+			for (ComponentFeature child : _children) {
+				children.add(child.clone());
+			}
+			_children = children;
+		}
 		return _children;
 	}
 
+	// read-only accessors without copying the shared containers, for internal use only.
+	/*package*/ Map<String, Object> properties() {
+		return _feature._properties;
+	}
+
+	/*package*/ Map<String, String> widgetOverrides() {
+		return _feature._overrides;
+	}
+
+	/*package*/ Map<String, String> clientAttributes() {
+		return _feature._clientAttrs;
+	}
+
+	/*package*/ Map<String, String> widgetAttributes() {
+		return _feature._widgetAttrs;
+	}
+
+	/*package*/ Map<String, String> widgetListeners() {
+		return _feature._widgetListeners;
+	}
+
+	/*package*/ Component owner() {
+		return _owner;
+	}
+
+	/*package*/ Map<String, Object> attributes() {
+		return _attributes;
+	}
+
+	/*package*/ Map<String, Object> dynamicProperties() {
+		return _dynamicProperties;
+	}
+
+	/*package*/ List<ComponentFeature> children() {
+		return _pendingChildren != null ? buildChildren() : _children;
+	}
+
+	/**
+	 * Builds all the pending children of the subtree, e.g. before diffing it
+	 * outside of the ZK execution.
+	 */
+	/*package*/ void buildAll() {
+		for (ComponentFeature child : children()) {
+			child.buildAll();
+		}
+	}
+
+	/**
+	 * Returns the number of the children without building them.
+	 */
+	/*package*/ int childCount() {
+		return _pendingChildren != null ? _pendingChildren._components.size() : _children.size();
+	}
+
+	/**
+	 * Returns whether the children aren't built yet, see {@link #buildNested(Component)}.
+	 */
+	/*package*/ boolean hasPendingChildren() {
+		return _pendingChildren != null;
+	}
+
+	private List<ComponentFeature> buildChildren() {
+		PendingChildren pending = _pendingChildren;
+		if (pending._children == null) {
+			Children children = new Children(pending._components.size());
+			for (Component child : pending._components) {
+				children.add(buildNested(child, pending._filter));
+			}
+			pending._children = children;
+		}
+		// the built children are shared with the clones if any, see #clone()
+		if (pending._shared) {
+			pending._children._shared = true;
+		}
+		_children = pending._children;
+		_pendingChildren = null;
+		return _children;
+	}
+
+	/**
+	 * The child components of a component feature, which are built into the
+	 * children on first access by either this instance or its clones.
+	 */
+	private static class PendingChildren {
+		private final List<Component> _components;
+		private final PropertyFilter _filter;
+		private Children _children;
+		private volatile boolean _shared; // shared with the clones
+
+		private PendingChildren(List<Component> components, @Nullable PropertyFilter filter) {
+			_components = components;
+			_filter = filter;
+		}
+	}
+
+	/**
+	 * Replaces all the children with the given ones, which are shared with
+	 * their current parent until either of them is changed.
+	 */
+	/*package*/ void replaceChildren(List<ComponentFeature> children) {
+		invalidateHash();
+		_children = new Children(children);
+		_children._shared = true;
+		_pendingChildren = null;
+	}
+
 	/**
 	 * Matches the given component feature with this instance.
 	 * @return true if all features are matched.
@@ -338,33 +589,204 @@ public class ComponentFeature implements Cloneable {
 		return _feature.match(other._feature);
 	}
 
+	/**
+	 * Matches all features of this instance including the attributes and
+	 * the dynamic properties, but not the children.
+	 */
+	/*package*/ boolean matchAll(ComponentFeature other) {
+		if (this == other) return true;
+		return Objects.equals(_widgetName, other._widgetName) && _feature.match(other._feature)
+				&& Feature.equalsMap(_attributes, other._attributes)
+				&& Feature.equalsMap(_dynamicProperties, other._dynamicProperties);
+	}
+
+	/**
+	 * Returns the structural hash of this subtree, which is composed of the widget name,
+	 * all the features, the attributes, the dynamic properties and the structural hashes
+	 * of the children.
+	 * <p>The hash is computed lazily and cached until this instance is mutated.
+	 * Note: a mutation of a descendant doesn't invalidate the cached hash of its
+	 * ancestors, the caller (i.e. {@link VirtualPatcher}) has to invalidate them along the route.
+	 * <p>Two subtrees with different hashes are never equal, while the same hash
+	 * doesn't guarantee the equality.
+	 */
+	/*package*/ int structuralHash() {
+		if (!_hashValid) {
+			int hash = _widgetName.hashCode();
+			hash = 31 * hash + _feature.hash();
+			hash = 31 * hash + Feature.hashMap(_attributes);
+			hash = 31 * hash + Feature.hashMap(_dynamicProperties);
+			int size = 1;
+			for (ComponentFeature child : children()) {
+				hash = 31 * hash + child.structuralHash();
+				size += child._size;
+			}
+			_hash = hash;
+			_size = size;
+			_hashValid = true;
+		}
+		return _hash;
+	}
+
+	/**
+	 * Returns the number of the component features of this subtree, which is
+	 * cached along with the {@link #structuralHash()}.
+	 */
+	/*package*/ int subtreeSize() {
+		structuralHash();
+		return _size;
+	}
+
+	/**
+	 * Returns false if both structural hashes are already cached and different,
+	 * i.e. both subtrees are never equal, without computing any hash.
+	 */
+	/*package*/ boolean mayEqual(ComponentFeature other) {
+		return !_hashValid || !other._hashValid || _hash == other._hash;
+	}
+
+	/**
+	 * Returns true if both structural hashes are already cached and the same,
+	 * without computing any hash. Note: the same hash doesn't guarantee the equality.
+	 */
+	/*package*/ boolean hasSameHash(ComponentFeature other) {
+		return _hashValid && other._hashValid && _hash == other._hash;
+	}
+
+	/**
+	 * Invalidates the cached structural hash of this instance.
+	 */
+	/*package*/ void invalidateHash() {
+		_hashValid = false;
+	}
+
 	/**
 	 * Returns the descriptors of this component. (Never null)
 	 */
 	public List<String> getDescriptors() {
-		List<String> output = new ArrayList<>();
-		output.add(_widgetName);
-		String sclass = (String) getProperties().get("sclass");
-		if (sclass != null) {
-			output.add(_widgetName + "." + (sclass.replace(" ", ".")));
+		if (_descriptors == null) {
+			List<String> output = new ArrayList<>(3);
+			output.add(_widgetName);
+			String sclass = (String) _feature._properties.get("sclass");
+			if (sclass != null) {
+				output.add(_widgetName + "." + (sclass.replace(" ", ".")));
+			}
+			String id = getId();
+			if (id != null) {
+				output.add(_widgetName + "#" + id);
+			}
+			_descriptors = Collections.unmodifiableList(output);
 		}
-		String id = getId();
-		if (id != null) {
-			output.add(_widgetName + "#" + id);
+		return _descriptors;
+	}
+
+	/**
+	 * Returns the symbols of the descriptors interned by the given table,
+	 * which are indexed by {@link DescriptorTable#WIDGET}, {@link DescriptorTable#SCLASS}
+	 * and {@link DescriptorTable#ID}, and -1 means no such descriptor.
+	 */
+	/*package*/ int[] getDescriptorSymbols(DescriptorTable table) {
+		DescriptorSymbols cached = _descriptorSymbols;
+		if (cached == null || cached.table != table) {
+			int[] symbols = {table.intern(_widgetName), -1, -1};
+			String sclass = (String) _feature._properties.get("sclass");
+			if (sclass != null) {
+				symbols[DescriptorTable.SCLASS] = table.intern(_widgetName + "." + (sclass.replace(" ", ".")));
+			}
+			String id = getId();
+			if (id != null) {
+				symbols[DescriptorTable.ID] = table.intern(_widgetName + "#" + id);
+			}
+			cached = new DescriptorSymbols(table, symbols);
+			_descriptorSymbols = cached;
 		}
-		return output;
+		return cached.symbols;
+	}
+
+	private void invalidateDescriptors() {
+		_descriptors = null;
+		_descriptorSymbols = null;
 	}
 
 	/**
 	 * Converts the feature to ZK component. (including all children)
+	 * <p>Note: if the feature is built without {@link DiffOptions#isCloneSnapshot()},
+	 * the owner component is cloned at this moment, so it should stay unchanged
+	 * until patching.
 	 */
 	public Component toComponent() {
 		return (Component) _owner.clone();
 	}
 
+	/**
+	 * Instantiates a new ZK component from the feature (including all children),
+	 * which creates the component from its component definition and applies the
+	 * properties, widget overrides, widget listeners, client attributes, attributes
+	 * and dynamic properties of the feature, instead of cloning the owner component
+	 * with its whole subtree by {@link #toComponent()}.
+	 * <p>Note: it assumes the properties are rendered as they're set, and a subtree
+	 * is cloned by {@link #toComponent()} instead if it cannot be instantiated,
+	 * e.g. with the event listeners or the properties of the internal use, or if
+	 * a property cannot be set back by its setter, which is logged. Any other
+	 * exception thrown by a setter is propagated. And the
+	 * feature built with a {@link PropertyFilter} shouldn't be instantiated, because
+	 * the dropped ones are lost.
+	 * @see DiffOptions#isInstantiateFromSnapshot()
+	 */
+	public Component instantiate() {
+		if (!isInstantiable()) {
+			return toComponent();
+		}
+		Component component;
+		try {
+			component = _owner.getDefinition().newInstance(_owner.getClass());
+			for (Map.Entry<String, Object> me : _feature._properties.entrySet()) {
+				PropertyAccessorRegistry.get(component, me.getKey()).setValue(component, me.getValue());
+			}
+			if (_feature._overrides != null) {
+				_feature._overrides.forEach(component::setWidgetOverride);
+			}
+			if (_feature._widgetListeners != null) {
+				_feature._widgetListeners.forEach(component::setWidgetListener);
+			}
+			if (_feature._widgetAttrs != null) {
+				_feature._widgetAttrs.forEach(component::setClientAttribute);
+			}
+			if (_feature._clientAttrs != null) {
+				_feature._clientAttrs.forEach(component::setClientAttribute);
+			}
+			_attributes.forEach(component::setAttribute);
+			if (component instanceof DynamicPropertied) {
+				for (Map.Entry<String, Object> me : _dynamicProperties.entrySet()) {
+					((DynamicPropertied) component).setDynamicProperty(me.getKey(), me.getValue());
+				}
+			}
+		} catch (UiException | ClassCastException e) {
+			// cannot be instantiated or set reflectively, or a value cannot be coerced
+			_logger.warn("Cannot instantiate [" + _widgetName + "], clone it instead", e);
+			return toComponent();
+		}
+		for (ComponentFeature child : children()) {
+			component.appendChild(child.instantiate());
+		}
+		return component;
+	}
+
+	private boolean isInstantiable() {
+		for (String name : _feature._properties.keySet()) {
+			// the event listeners and the internal ones cannot be set back
+			if (name.startsWith("$") || name.startsWith("_")) {
+				return false;
+			}
+		}
+		List<ShadowElement> shadowRoots = ((ComponentCtrl) _owner).getShadowRoots();
+		return shadowRoots == null || shadowRoots.isEmpty();
+	}
+
 	/**
 	 * Builds a component feature tree from the given ZK component tree.
-	 * <p>Note: the source component will be cloned as a snapshot inside this method.
+	 * <p>Note: the source component will be cloned as a snapshot inside this method,
+	 * unless {@link DiffOptions#isCloneSnapshot()} is false.
 	 * @param source
 	 * @param options
 	 */
@@ -375,6 +797,9 @@ public class ComponentFeature implements Cloneable {
 		if (!(source instanceof ComponentCtrl)) {
 			throw new RuntimeException("Component should implement ComponentCtrl interface [" + source + "]");
 		}
+		if (!options.isCloneSnapshot()) {
+			return buildSnapshot(source, options.getSourceRange(), options.getPropertyFilter());
+		}
 		Component clone = (Component) source.clone();
 
 		// unlink clone's shadow roots
@@ -400,39 +825,89 @@ public class ComponentFeature implements Cloneable {
 				}
 			}
 		}
-		return buildNested(clone);
+		return buildNested(clone, options.getPropertyFilter());
 	}
 
 	/**
 	 * Internal use only.
 	 * <p>Note: unlike {@link #build(Component, DiffOptions)}, this source component
 	 * won't be cloned inside this method, i.e. the ComponentFeature hold a live component.
+	 * <p>The children are built from the owner components on first access, so the
+	 * owner should stay unchanged until then.
 	 * @hidden
 	 */
 	public static ComponentFeature buildNested(Component source) {
-		ComponentFeature root = new ComponentFeature(new Feature(), source.getDefinition().getName(), source);
-		List<Component> shadowChildren = new ArrayList<>(source.getChildren());
+		return buildNested(source, null);
+	}
+
+	private static ComponentFeature buildNested(Component source, @Nullable PropertyFilter filter) {
+		List<Component> children = source.getChildren();
+		PendingChildren shadowChildren = children.isEmpty() ? null
+				: new PendingChildren(new ArrayList<>(children), filter);
+		ComponentFeature root = render(source, filter);
+		// the children are built on first access, a subtree replaced as a whole is never built.
+		root._pendingChildren = shadowChildren;
+		return root;
+	}
+
+	/**
+	 * Builds a component feature tree by walking the live component tree read-only,
+	 * and only the children within the given range are included for the root.
+	 */
+	private static ComponentFeature buildSnapshot(Component source, @Nullable DiffRange diffRange,
+			@Nullable PropertyFilter filter) {
+		ComponentFeature root = render(source, filter);
+		int start = diffRange != null ? diffRange.getStart() : 0;
+		int end = diffRange != null ? diffRange.getEnd() : Integer.MAX_VALUE;
+		int index = 0;
+		for (Component child = source.getFirstChild(); child != null && index < end;
+				child = child.getNextSibling(), index++) {
+			if (index >= start) {
+				root.appendChild(buildSnapshot(child, null, filter));
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Renders the given component into a component feature without the children.
+	 */
+	private static ComponentFeature render(Component source, @Nullable PropertyFilter filter) {
+		String widgetName = source.getDefinition().getName();
+		Feature feature = new Feature();
+		feature._widgetName = widgetName;
+		feature._filter = filter;
 		try {
-			((ComponentCtrl) source).renderPropertiesOnly(root._feature);
+			((ComponentCtrl) source).renderPropertiesOnly(feature);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			feature._filter = null; // not to keep it after rendering
 		}
-		shadowChildren.forEach((component -> root.appendChild(ComponentFeature.buildNested(component))));
-		return root;
+		((CompactMap<Object>) feature._properties).trimToSize();
+		return new ComponentFeature(feature, widgetName, source, filter);
 	}
 
 	/**
 	 * Clones a new component feature.
+	 * <p>The clone shares all the features and the children with this instance
+	 * in O(1), and either of them copies a shared one on its first write,
+	 * e.g. by {@link #setProperty(String, Object)} or {@link #replaceChild(int, ComponentFeature)},
+	 * but never on reading, e.g. by {@link #getChildren()}.
+	 * <p>The shared containers themselves are marked as shared, instead of this
+	 * instance, so cloning a component feature never changes it, and it's safe
+	 * to clone and read it concurrently.
 	 */
 	public ComponentFeature clone() {
 		try {
 			ComponentFeature clone = (ComponentFeature) super.clone();
-			clone._widgetName = _widgetName;
-			clone._feature = _feature.clone();
-			clone._attributes = new HashMap<>(_attributes);
-			clone._dynamicProperties = new HashMap<>(_dynamicProperties);
-			clone._children = _children.stream().map(ComponentFeature::clone).collect(
-					Collectors.toList());
+			_feature._shared = true;
+			_attributes.share();
+			_dynamicProperties.share();
+			_children._shared = true;
+			if (_pendingChildren != null) {
+				_pendingChildren._shared = true;
+			}
 
 //			1. Avoid to clone ZK component recursively
 //			2. ZK component will be cloned when patching
@@ -443,14 +918,48 @@ public class ComponentFeature implements Cloneable {
 		}
 	}
 
+	/**
+	 * The children of a component feature, which are marked as shared once cloned.
+	 */
+	private static class Children extends ArrayList<ComponentFeature> {
+		private static final long serialVersionUID = 20261018L;
+
+		private volatile boolean _shared; // shared with the clones, see #clone()
+
+		private Children(int initialCapacity) {
+			super(initialCapacity);
+		}
+
+		private Children(List<ComponentFeature> children) {
+			super(children);
+		}
+	}
+
+	/**
+	 * The descriptor symbols with the table interning them, see #getDescriptorSymbols().
+	 */
+	private static final class DescriptorSymbols {
+		private final DescriptorTable table;
+		private final int[] symbols;
+
+		private DescriptorSymbols(DescriptorTable table, int[] symbols) {
+			this.table = table;
+			this.symbols = symbols;
+		}
+	}
+
 	private static class Feature implements ContentRenderer, Cloneable {
+		private volatile boolean _shared; // shared with the clones, see ComponentFeature#clone()
 		private Map<String, Object> _properties;
 		private Map<String, String> _overrides;
 		private Map<String, String> _clientAttrs;
 		private Map<String, String> _widgetAttrs;
 		private Map<String, String> _widgetListeners;
+		// the filter of the properties while rendering, see #render(Component, PropertyFilter)
+		private String _widgetName;
+		private PropertyFilter _filter;
 		private Feature() {
-			_properties = new HashMap<>();
+			_properties = new CompactMap<>();
 		}
 		public int size() {
 			return _properties.size();
@@ -463,67 +972,78 @@ public class ComponentFeature implements Cloneable {
 		}
 
 		public void render(String name, String value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, Date value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, Object value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, int value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, short value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, long value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, byte value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, boolean value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, double value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, float value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void render(String name, char value) throws IOException {
-			_properties.put(name, value);
+			put(name, value);
 		}
 
 		public void renderDirectly(String name, Object value) {
-			_properties.put(name, value);
+			put(name, value);
+		}
+
+		private void put(String name, Object value) {
+			if (_filter == null || _filter.accept(_widgetName, PropertyFilter.Type.PROPERTY, name)) {
+				_properties.put(name, value);
+			}
 		}
 
+		// copy the maps below, the component may be a live one
 		public void renderWidgetListeners(Map<String, String> listeners) {
-			_widgetListeners = listeners;
+			_widgetListeners = listeners != null ? new CompactMap<>(listeners) : null;
 		}
 
 		public void renderWidgetOverrides(Map<String, String> overrides) {
-			_overrides = overrides;
+			_overrides = overrides != null ? new CompactMap<>(overrides) : null;
 		}
 
 		public void renderWidgetAttributes(Map<String, String> attrs) {
-			_widgetAttrs = attrs;
+			_widgetAttrs = attrs != null ? new CompactMap<>(attrs) : null;
 		}
 
 		public void renderClientAttributes(Map<String, String> attrs) {
-			_clientAttrs = attrs;
+			_clientAttrs = attrs != null
+					? copyOf(attrs, _widgetName, _filter, PropertyFilter.Type.CLIENT_ATTRIBUTE) : null;
+			if (_clientAttrs != null && _clientAttrs.isEmpty() && !attrs.isEmpty()) {
+				_clientAttrs = null; // all filtered, the same as none
+			}
 		}
 
 		public boolean match(Feature other) {
@@ -533,11 +1053,32 @@ public class ComponentFeature implements Cloneable {
 					&& equalsMap(_widgetListeners, other._widgetListeners);
 		}
 
+		public int hash() {
+			int hash = hashMap(_properties);
+			hash = 31 * hash + hashMap(_overrides);
+			hash = 31 * hash + hashMap(_clientAttrs);
+			hash = 31 * hash + hashMap(_widgetAttrs);
+			return 31 * hash + hashMap(_widgetListeners);
+		}
+
+		// order independent, and consistent with Objects.equals() for array values
+		private static int hashMap(Map<String, ?> map) {
+			if (map == null || map.isEmpty()) return 0;
+			int hash = 0;
+			for (Map.Entry<String, ?> me : map.entrySet()) {
+				hash += me.getKey().hashCode() ^ Objects.hashCode(me.getValue());
+			}
+			return hash;
+		}
+
 		private static boolean equalsMap(Map m1, Map m2) {
 			if (m1 != null && m2 != null) {
 				if (m1.size() != m2.size()) {
 					return false;
 				}
+				if (m1 instanceof CompactMap && m2 instanceof CompactMap) {
+					return ((CompactMap<?>) m1).equalsCompact((CompactMap<?>) m2);
+				}
 				return m1.keySet().stream()
 						.allMatch(k -> Objects.equals(m1.get(k), m2.get(k)));
 			} else
@@ -547,11 +1088,12 @@ public class ComponentFeature implements Cloneable {
 		public Feature clone() {
 			try {
 				Feature clone = (Feature) super.clone();
-				clone._properties = new HashMap<>(_properties);
-				clone._overrides = _overrides != null ? new HashMap<>(_overrides) : _overrides;
-				clone._clientAttrs = _clientAttrs != null ? new HashMap<>(_clientAttrs) : _clientAttrs;
-				clone._widgetListeners = _widgetListeners != null ? new HashMap<>(_widgetListeners) : _widgetListeners;
-				clone._widgetAttrs = _widgetAttrs != null ? new HashMap<>(_widgetAttrs) : _widgetAttrs;
+				clone._shared = false;
+				clone._properties = new CompactMap<>(_properties);
+				clone._overrides = _overrides != null ? new CompactMap<>(_overrides) : _overrides;
+				clone._clientAttrs = _clientAttrs != null ? new CompactMap<>(_clientAttrs) : _clientAttrs;
+				clone._widgetListeners = _widgetListeners != null ? new CompactMap<>(_widgetListeners) : _widgetListeners;
+				clone._widgetAttrs = _widgetAttrs != null ? new CompactMap<>(_widgetAttrs) : _widgetAttrs;
 				return clone;
 			} catch (CloneNotSupportedException e) {
 				throw new RuntimeException(e);
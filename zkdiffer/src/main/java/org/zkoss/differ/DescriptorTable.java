@@ -0,0 +1,74 @@
+/* DescriptorTable.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		7:55 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A symbol table to intern the descriptors of the component features into
+ * primitive int symbols, so that the descriptors can be compared and counted
+ * without strings and boxed maps.
+ * <p>The symbols of a component feature are stored as an int array of
+ * {@link #WIDGET}, {@link #SCLASS} and {@link #ID}, and -1 means no such descriptor.
+ * @author jumperchen
+ * @see ComponentFeature#getDescriptors()
+ */
+/*package*/ class DescriptorTable {
+	/*package*/ static final int WIDGET = 0, SCLASS = 1, ID = 2;
+
+	private final Map<String, Integer> _symbols = new HashMap<>();
+
+	/**
+	 * Returns the symbol of the given descriptor.
+	 */
+	/*package*/ int intern(String descriptor) {
+		Integer symbol = _symbols.get(descriptor);
+		if (symbol == null) {
+			symbol = _symbols.size();
+			_symbols.put(descriptor, symbol);
+		}
+		return symbol;
+	}
+
+	/**
+	 * Returns the symbols of the descriptors that appear exactly once in both
+	 * children.
+	 */
+	/*package*/ BitSet uniqueInBoth(List<ComponentFeature> sourceChildren,
+			List<ComponentFeature> targetChildren) {
+		BitSet unique = findUniqueDescriptors(sourceChildren);
+		unique.and(findUniqueDescriptors(targetChildren));
+		return unique;
+	}
+
+	private BitSet findUniqueDescriptors(List<ComponentFeature> children) {
+		BitSet unique = new BitSet();
+		BitSet duplicated = new BitSet();
+		for (ComponentFeature child : children) {
+			for (int symbol : child.getDescriptorSymbols(this)) {
+				if (symbol < 0) {
+					continue;
+				}
+				if (unique.get(symbol)) {
+					unique.clear(symbol);
+					duplicated.set(symbol);
+				} else if (!duplicated.get(symbol)) {
+					unique.set(symbol);
+				}
+			}
+		}
+		return unique;
+	}
+}
@@ -0,0 +1,131 @@
+/* DiffContext.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		6:40 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The context of a diffing engine to hold the reusable scratch buffers, so that
+ * the engine doesn't allocate them on every call.
+ * <p>Note: this context isn't thread-safe, use {@link #fork()} for another thread.
+ * @author jumperchen
+ */
+/*package*/ class DiffContext {
+	private int[] _table = new int[0];
+	private byte[] _matrix = new byte[0];
+	private final DescriptorTable _descriptorTable = new DescriptorTable();
+	private Budget _budget = new Budget();
+
+	/**
+	 * The budget of diffing shared by the forked contexts, see DiffOptions#getTimeBudget()
+	 */
+	private static class Budget {
+		private long _deadline; // System.nanoTime(), or 0 for no deadline
+		private final AtomicInteger _remainingNodes = new AtomicInteger(-1); // or -1 for unlimited
+		private final AtomicLong _remainingCells = new AtomicLong(-1); // or -1 for unlimited
+		private volatile boolean _exhausted;
+	}
+
+	/**
+	 * Returns a new context for a forked task, which shares the budget with this
+	 * context, but not the scratch buffers.
+	 */
+	/*package*/ DiffContext fork() {
+		DiffContext context = new DiffContext();
+		context._budget = _budget;
+		return context;
+	}
+
+	/**
+	 * Starts the budget of diffing from the given options.
+	 */
+	/*package*/ void startBudget(DiffOptions options) {
+		Duration timeBudget = options.getTimeBudget();
+		Budget budget = new Budget();
+		budget._deadline = timeBudget != null ? Math.max(System.nanoTime() + timeBudget.toNanos(), 1) : 0;
+		budget._remainingNodes.set(options.getMaxVisitedNodes() > 0 ? options.getMaxVisitedNodes() : -1);
+		budget._remainingCells.set(options.getMaxLcsCells() > 0 ? options.getMaxLcsCells() : -1);
+		_budget = budget;
+	}
+
+	/**
+	 * Counts a visited node, and returns false if the budget has run out.
+	 */
+	/*package*/ boolean visitNode() {
+		AtomicInteger remainingNodes = _budget._remainingNodes;
+		if (remainingNodes.get() >= 0 && remainingNodes.getAndUpdate(n -> n > 0 ? n - 1 : n) == 0) {
+			_budget._exhausted = true;
+		}
+		return !isExhausted();
+	}
+
+	/**
+	 * Counts the cells of a longest common subsequence table to compute,
+	 * and returns false if the budget has run out.
+	 */
+	/*package*/ boolean computeCells(long cells) {
+		AtomicLong remainingCells = _budget._remainingCells;
+		if (remainingCells.get() >= 0
+				&& remainingCells.getAndUpdate(n -> n >= cells ? n - cells : n) < cells) {
+			_budget._exhausted = true;
+		}
+		return !isExhausted();
+	}
+
+	/**
+	 * Returns whether the budget of diffing has run out.
+	 */
+	/*package*/ boolean isExhausted() {
+		Budget budget = _budget;
+		if (!budget._exhausted && budget._deadline != 0 && System.nanoTime() - budget._deadline > 0) {
+			budget._exhausted = true;
+		}
+		return budget._exhausted;
+	}
+
+	/**
+	 * Returns the descriptor table shared by both component features of this diffing.
+	 */
+	/*package*/ DescriptorTable getDescriptorTable() {
+		return _descriptorTable;
+	}
+
+	/**
+	 * Returns a zero-filled table with at least the given size, which is
+	 * reused by the next call.
+	 */
+	/*package*/ int[] getTable(int size) {
+		if (_table.length < size) {
+			// grow by half at least to avoid reallocating for the slightly bigger size.
+			_table = new int[Math.max(size, _table.length + (_table.length >> 1))];
+		} else {
+			Arrays.fill(_table, 0, size, 0);
+		}
+		return _table;
+	}
+
+	/**
+	 * Returns a zero-filled byte matrix with at least the given size, which is
+	 * reused by the next call.
+	 */
+	/*package*/ byte[] getMatrix(int size) {
+		if (_matrix.length < size) {
+			_matrix = new byte[Math.max(size, _matrix.length + (_matrix.length >> 1))];
+		} else {
+			Arrays.fill(_matrix, 0, size, (byte) 0);
+		}
+		return _matrix;
+	}
+}
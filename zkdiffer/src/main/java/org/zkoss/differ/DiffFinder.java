@@ -13,14 +13,14 @@ package org.zkoss.differ;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 import org.zkoss.lang.Objects;
 import org.zkoss.util.Pair;
@@ -36,14 +36,24 @@ import org.zkoss.zk.ui.Component;
 	private DiffOptions _options;
 	private boolean _foundAll;
 	private Map<String, List<SubtreeInfo>> _subtreeInfosCache;
+	private final DiffContext _context = new DiffContext();
+	private static final BitSet NO_UNIQUE_FEATURES = new BitSet(0);
 
 
 	/*package*/ DiffFinder(Component source, Component target, DiffOptions options) {
 		_source = ComponentFeature.build(source, options);
-		_target = ComponentFeature.build(target,
+		_target = buildTarget(target, options);
+		_options = options;
+	}
+
+	/**
+	 * Builds the component feature of the target component with the target range
+	 * of the given options.
+	 */
+	/*package*/ static ComponentFeature buildTarget(Component target, DiffOptions options) {
+		return ComponentFeature.build(target,
 				new DiffOptions.Builder().from(options).setSourceRange(options.getTargetRange())
 						.build()); // reset diff range for target
-		_options = options;
 	}
 
 	/*package*/ DiffFinder(ComponentFeature source, ComponentFeature target, DiffOptions options) {
@@ -52,25 +62,53 @@ import org.zkoss.zk.ui.Component;
 		_options = options;
 	}
 	/*package*/ List<Instruction> findOuter() {
+		List<Instruction> result = new ArrayList<>();
+		findOuter(result::add);
+		return result;
+	}
+
+	/*package*/ void findOuter(Consumer<Instruction> consumer) {
 		_subtreeInfosCache = new HashMap<>();
 		try {
 			if (_options.isSkipRoot()) {
 				_options = new DiffOptions.Builder().from(_options).setSkipRoot(false).build();
 			}
-			return findDiffs(_source, _target);
+			findDiffs(_source, _target, consumer);
 		} finally {
 			_subtreeInfosCache = null;
 		}
 	}
 
+	/**
+	 * Returns whether there is any difference of the whole tree, which stops at
+	 * the first mismatch without producing any instruction.
+	 */
+	/*package*/ boolean hasOuterDifferences() {
+		return !matchTree(_source, _target);
+	}
+
+	/**
+	 * Returns whether there is any difference of the subtree, excluding both roots.
+	 * @see #hasOuterDifferences()
+	 */
+	/*package*/ boolean hasInnerDifferences() {
+		return !matchChildren(_source, _target);
+	}
+
 	/*package*/ List<Instruction> findInner() {
+		List<Instruction> result = new ArrayList<>();
+		findInner(result::add);
+		return result;
+	}
+
+	/*package*/ void findInner(Consumer<Instruction> consumer) {
 		_subtreeInfosCache = new HashMap<>();
 		try {
 			_source.outerDone = true;
 			if (!_options.isSkipRoot()) {
 				_options = new DiffOptions.Builder().from(_options).setSkipRoot(true).build();
 			}
-			return findDiffs(_source, _target);
+			findDiffs(_source, _target, consumer);
 		} finally {
 			_subtreeInfosCache = null;
 		}
@@ -86,11 +124,24 @@ import org.zkoss.zk.ui.Component;
 		}
 	}
 
-	private List<Instruction> findDiffs(ComponentFeature source, ComponentFeature target) {
+	/**
+	 * Finds the differences and passes each instruction to the given consumer
+	 * as soon as it's final, i.e. a batch of the iterative engine is applied
+	 * into the source virtually and never changed after.
+	 */
+	private void findDiffs(ComponentFeature source, ComponentFeature target,
+			Consumer<Instruction> consumer) {
+		DiffRange diffRange = _options.getSourceRange();
+		Consumer<Instruction> sink = diffRange == null || diffRange.getStart() == 0
+				? consumer : instruction -> consumer.accept(fixDiffRange(instruction, diffRange.getStart()));
+		_context.startBudget(_options);
+		if (_options.getEngine() == DiffOptions.Engine.SINGLE_PASS) {
+			new SinglePassDiffFinder(_options, _context).find(source, target, sink);
+			return;
+		}
 		List<Instruction> diffs;
-		List<Instruction> result = new ArrayList<>();
 		do {
-			diffs = findNextDiff(source, target, new ArrayList<>());
+			diffs = findNextDiff(source, target, Route.ROOT);
 			if (diffs.isEmpty()) {
 				// Last check if the elements really are the same now.
 				// If not, remove all info about being done and start over.
@@ -101,53 +152,53 @@ import org.zkoss.zk.ui.Component;
 					} else {
 						_foundAll = true;
 						removeDone(source);
-						diffs = this.findNextDiff(source, target, new ArrayList<>());
+						diffs = this.findNextDiff(source, target, Route.ROOT);
 					}
 				}
 			}
 			if (!diffs.isEmpty()) {
 				_foundAll = false;
-				result.addAll(diffs);
 				VirtualPatcher.patch(source, diffs, _options, _subtreeInfosCache);
+				diffs.forEach(sink);
 			}
 		} while (diffs.size() > 0);
-
-		return fixDiffRange(result);
 	}
 
-	private List<Instruction> fixDiffRange(List<Instruction> diffs) {
-		if (diffs.isEmpty()) return diffs;
-		DiffRange diffRange = _options.getSourceRange();
-		if (diffRange == null || diffRange.getStart() == 0) {
-			// no change
-			return diffs;
+	private static Instruction fixDiffRange(Instruction instruction, int start) {
+		Route route = instruction.getRouteIndexes();
+		// ignore for root (except relocate)
+		if (!route.isRoot()) {
+			return new Instruction.Builder().from(instruction)
+					.setRoute(route.shiftFirst(start)).build();
+		} else if (instruction.getAction().equals(Instruction.Action.relocateGroup)) {
+			Instruction.Builder newInstruction = new Instruction.Builder().from(instruction);
+			return newInstruction.setFrom(instruction.getFrom() + start).setTo(instruction.getTo() + start).build();
 		}
-		return diffs.stream().map(instruction -> {
-			List<Integer> route = instruction.getRoute();
-			// ignore for root (except relocate)
-			int start = diffRange.getStart();
-			if (!route.isEmpty()) {
-				Instruction.Builder newInstruction = new Instruction.Builder().from(instruction);
-				List<Integer> newRoute = new ArrayList<>(route);
-				newRoute.set(0, newRoute.get(0) + start);
-				return newInstruction.setRoute(newRoute).build();
-			} else if (instruction.getAction().equals(Instruction.Action.relocateGroup)) {
-				Instruction.Builder newInstruction = new Instruction.Builder().from(instruction);
-				return newInstruction.setFrom(instruction.getFrom() + start).setTo(instruction.getTo() + start).build();
-			}
-			return instruction;
-		}).collect(Collectors.toList());
+		return instruction;
 	}
 
 	private void removeDone(ComponentFeature source) {
 		source.outerDone = false;
 		source.innerDone = false;
-		source.getChildren().forEach(this::removeDone);
+		source.children().forEach(this::removeDone);
 	}
 
-	private List<Instruction> findNextDiff(ComponentFeature source, ComponentFeature target, List<Integer> route) {
+	private List<Instruction> findNextDiff(ComponentFeature source, ComponentFeature target, Route route) {
 		List<Instruction> diffs;
 
+		if (!_context.visitNode()) {
+			return findExhaustedDiff(source, target, route);
+		}
+
+		// prune the identical subtree, only if both hashes are cached already,
+		// not to hash the whole subtree nor build the lazy children here
+		if (!source.outerDone && !source.innerDone && source.hasSameHash(target)
+				&& isEqual(source, target)) {
+			source.outerDone = true;
+			source.innerDone = true;
+			return Collections.emptyList();
+		}
+
 		// outer differences?
 		if (!source.outerDone) {
 			diffs = findOuterDiff(source, target, route);
@@ -167,14 +218,80 @@ import org.zkoss.zk.ui.Component;
 		}
 		return Collections.emptyList();
 	}
+	/**
+	 * Replaces the subtree as a whole once the budget runs out, or its children
+	 * if it's the root.
+	 */
+	private List<Instruction> findExhaustedDiff(ComponentFeature source,
+			ComponentFeature target, Route route) {
+		if (!route.isRoot()) {
+			return Collections.singletonList(newReplaceElement(source, target, route));
+		}
+		List<Instruction> diffs = new ArrayList<>();
+		if (!source.outerDone) {
+			diffs.addAll(findOuterDiff(source, target, route));
+			source.outerDone = true;
+		}
+		replaceChildren(diffs::add, source.children(), target.children(), route);
+		return diffs;
+	}
+
+	/**
+	 * Replaces the different children pair by pair, and then removes or adds
+	 * the rest of them, without aligning the children.
+	 */
+	/*package*/ static void replaceChildren(Consumer<Instruction> diffs,
+			List<ComponentFeature> sourceChildren, List<ComponentFeature> targetChildren, Route route) {
+		int sourceSize = sourceChildren.size();
+		int targetSize = targetChildren.size();
+		int common = Math.min(sourceSize, targetSize);
+		for (int i = 0; i < common; i++) {
+			ComponentFeature e1 = sourceChildren.get(i);
+			ComponentFeature e2 = targetChildren.get(i);
+			if (!isSameTree(e1, e2)) {
+				diffs.accept(newReplaceElement(e1, e2, route.concat(i)));
+			}
+		}
+		for (int i = sourceSize - 1; i >= common; i--) {
+			diffs.accept(Instruction.newBuilder(Instruction.Action.removeElement)
+					.setRoute(route.concat(i)).setElement(sourceChildren.get(i).clone()).build());
+		}
+		for (int i = common; i < targetSize; i++) {
+			diffs.accept(Instruction.newBuilder(Instruction.Action.addElement)
+					.setRoute(route.concat(i)).setElement(targetChildren.get(i).clone()).build());
+		}
+	}
+
+	/*package*/ static Instruction newReplaceElement(ComponentFeature source,
+			ComponentFeature target, Route route) {
+		return Instruction.newBuilder(Instruction.Action.replaceElement)
+				.setOldValue(source.clone()).setNewValue(target.clone())
+				.setRoute(route).build();
+	}
+
 	private List<Instruction> findInnerDiff(ComponentFeature source,
-			ComponentFeature target, List<Integer> route) {
-		final List<ComponentFeature> sourceChildren = new ArrayList<>(source.getChildren());
-		final List<ComponentFeature> targetChildren = new ArrayList<>(target.getChildren());
+			ComponentFeature target, Route route) {
+		final List<ComponentFeature> sourceChildren = new ArrayList<>(source.children());
+		final List<ComponentFeature> targetChildren = new ArrayList<>(target.children());
 		int last = Math.max(sourceChildren.size(), targetChildren.size());
 		int childrenLengthDifference = Math.abs(
 				sourceChildren.size() - targetChildren.size());
 		List<Instruction> diffs = new ArrayList<>();
+		KeyedReconciler keyedReconciler = KeyedReconciler.of(sourceChildren,
+				targetChildren, _options.getKeyExtractor());
+		if (keyedReconciler != null) {
+			diffs = keyedReconciler.reconcile(targetChildren, route);
+			if (diffs.size() > 0) {
+				return diffs;
+			}
+			// the same keys in the same order, diffs them pair by pair without the max child count.
+			diffs = new ArrayList<>();
+			for (int i = 0; i < last; i++) {
+				diffs.addAll(findNextDiff(sourceChildren.get(i), targetChildren.get(i), route.concat(i)));
+			}
+			source.innerDone = true;
+			return diffs;
+		}
 		int index = 0;
 		if (_options.getMaxChildCount() <= 0
 				|| last < _options.getMaxChildCount()) {
@@ -211,12 +328,12 @@ import org.zkoss.zk.ui.Component;
 				 * and remove as necessary to obtain the same length */
 				if (e1 != null && e2 == null) {
 					diffs.add(Instruction.newBuilder(Instruction.Action.removeElement)
-									.setRoute(concat(route, index)).setElement(e1.clone()).build());
+									.setRoute(route.concat(index)).setElement(e1.clone()).build());
 					index -= 1;
 				} else if (e2 != null && e1 == null) {
 					diffs.add(Instruction.newBuilder(
 							Instruction.Action.addElement).setRoute(
-							concat(route, index)).setElement(e2.clone()).build());
+							route.concat(index)).setElement(e2.clone()).build());
 				}
 			}
 			/* We are now guaranteed that childNodes e1 and e2 exist,
@@ -230,12 +347,12 @@ import org.zkoss.zk.ui.Component;
 			if (e1 != null && e2 != null) {
 				if (_options.getMaxChildCount() <= 0
 						|| last < _options.getMaxChildCount()) {
-					diffs.addAll(this.findNextDiff(e1, e2, concat(route, index)));
+					diffs.addAll(this.findNextDiff(e1, e2, route.concat(index)));
 				} else if (!isEqual(e1, e2)) {
 					if (sourceChildren.size() > targetChildren.size()) {
 						diffs.add(Instruction.newBuilder(Instruction.Action.removeElement)
 								.setElement(e1.clone())
-								.setRoute(concat(route, index)).build());
+								.setRoute(route.concat(index)).build());
 						sourceChildren.remove(i);
 						i -= 1;
 						index -= 1;
@@ -245,13 +362,13 @@ import org.zkoss.zk.ui.Component;
 						ComponentFeature cloneChild = e2.clone();
 						diffs.add(Instruction.newBuilder(Instruction.Action.addElement)
 								.setElement(cloneChild)
-								.setRoute(concat(route, index)).build());
+								.setRoute(route.concat(index)).build());
 						sourceChildren.add(i, cloneChild);
 						childrenLengthDifference -= 1;
 					} else {
 						diffs.add(Instruction.newBuilder(Instruction.Action.replaceElement)
 								.setOldValue(e1.clone()).setNewValue(e2.clone())
-								.setRoute(concat(route, index)).build());
+								.setRoute(route.concat(index)).build());
 					}
 				}
 			}
@@ -261,18 +378,13 @@ import org.zkoss.zk.ui.Component;
 		return diffs;
 	}
 
-	private List<Integer> concat(List<Integer> list, Integer newValue) {
-		List<Integer> newList = new ArrayList<>(list);
-		newList.add(newValue);
-		return newList;
-	}
 	private List<Instruction> attemptGroupRelocation(ComponentFeature source,
-			ComponentFeature target, List<SubtreeInfo> subtreeInfos, List<Integer> route, boolean cachedSubtrees) {
+			ComponentFeature target, List<SubtreeInfo> subtreeInfos, Route route, boolean cachedSubtrees) {
 		Pair<Object[], Object[]> gapInfo = getGapInformation(source, target,
 				subtreeInfos);
 
-		List<ComponentFeature> sourceChildren = new ArrayList<>(source.getChildren());
-		List<ComponentFeature> targetChildren = new ArrayList<>(target.getChildren());
+		List<ComponentFeature> sourceChildren = new ArrayList<>(source.children());
+		List<ComponentFeature> targetChildren = new ArrayList<>(target.children());
 		List<Object> gaps1 = new ArrayList<>(Arrays.asList(gapInfo.x));
 		List<Object> gaps2 = new ArrayList<>(Arrays.asList(gapInfo.y));
 		int shortest = Math.min(gaps1.size(), gaps2.size());
@@ -286,7 +398,7 @@ import org.zkoss.zk.ui.Component;
 				ComponentFeature c1 = sourceChildren.get(index1);
 				diffs.add(Instruction.newBuilder(
 						Instruction.Action.removeElement).setRoute(
-						concat(route, index1)).setElement(c1.clone()).build());
+						route.concat(index1)).setElement(c1.clone()).build());
 				gaps1.remove(index1);
 				sourceChildren.remove(index1);
 				shortest = Math.min(gaps1.size(), gaps2.size());
@@ -296,7 +408,7 @@ import org.zkoss.zk.ui.Component;
 				ComponentFeature c2 = targetChildren.get(index2);
 				diffs.add(Instruction.newBuilder(
 						Instruction.Action.addElement).setRoute(
-						concat(route, index1)).setElement(c2.clone()).build());
+						route.concat(index1)).setElement(c2.clone()).build());
 				gaps1.add(index1, Boolean.TRUE);
 				sourceChildren.add(index1, c2.clone());
 				shortest = Math.min(gaps1.size(), gaps2.size());
@@ -312,7 +424,7 @@ import org.zkoss.zk.ui.Component;
 					boolean destinationDifferent = false;
 					for (int j = 0; j < group.length; j++) {
 						if (!roughlyEqual(sourceChildren.get(toGroup + j),
-								sourceChildren.get(group.oldIndex + j), Collections.emptyMap(), false, false)) {
+								sourceChildren.get(group.oldIndex + j), _context.getDescriptorTable(), NO_UNIQUE_FEATURES, false, false)) {
 							destinationDifferent = true;
 						}
 					}
@@ -330,8 +442,8 @@ import org.zkoss.zk.ui.Component;
 	}
 
 	private Pair<Object[], Object[]> getGapInformation(ComponentFeature source, ComponentFeature target, List<SubtreeInfo> subtreeInfos) {
-		List<ComponentFeature> sourceChildren = source.getChildren();
-		List<ComponentFeature> targetChildren = target.getChildren();
+		List<ComponentFeature> sourceChildren = source.children();
+		List<ComponentFeature> targetChildren = target.children();
 		int sourceSize = sourceChildren.size();
 		int targetSize = targetChildren.size();
 		Object[] gaps1 = new Object[sourceSize];
@@ -357,14 +469,49 @@ import org.zkoss.zk.ui.Component;
 		return new Pair<>(gaps1, gaps2);
 	}
 
+	/**
+	 * A lazily computed matrix of {@link #roughlyEqual} between the source children
+	 * and the target children, which is shared by all the iterations to find the groups.
+	 */
+	private static class RoughlyEqualMatrix {
+		private static final byte UNKNOWN = 0, EQUAL = 1, DIFFERENT = 2;
+		private final List<ComponentFeature> _sourceChildren;
+		private final List<ComponentFeature> _targetChildren;
+		private final DescriptorTable _table;
+		private final BitSet _uniqueFeatures;
+		private final boolean _subsetsSame;
+		private final byte[] _cells;
+
+		private RoughlyEqualMatrix(List<ComponentFeature> sourceChildren,
+				List<ComponentFeature> targetChildren, DiffContext context) {
+			_sourceChildren = sourceChildren;
+			_targetChildren = targetChildren;
+			_table = context.getDescriptorTable();
+			_uniqueFeatures = _table.uniqueInBoth(sourceChildren, targetChildren);
+			_subsetsSame = isSubsetsSame(_table, sourceChildren, targetChildren);
+			_cells = context.getMatrix(sourceChildren.size() * targetChildren.size());
+		}
+
+		private boolean isEqual(int c1Index, int c2Index) {
+			int cell = c1Index * _targetChildren.size() + c2Index;
+			if (_cells[cell] == UNKNOWN) {
+				_cells[cell] = roughlyEqual(_sourceChildren.get(c1Index),
+						_targetChildren.get(c2Index), _table, _uniqueFeatures, _subsetsSame, true)
+						? EQUAL : DIFFERENT;
+			}
+			return _cells[cell] == EQUAL;
+		}
+	}
+
 	private List<SubtreeInfo> createSubtreeInfos(List<ComponentFeature> sourceChildren, List<ComponentFeature> targetChildren) {
 		boolean[] marked1 = new boolean[sourceChildren.size()];
 		boolean[] marked2 = new boolean[targetChildren.size()];
 		SubtreeInfo subtreeInfo = null;
 		List<SubtreeInfo> subtreeInfos = new ArrayList<>();
+		RoughlyEqualMatrix matrix = new RoughlyEqualMatrix(sourceChildren, targetChildren, _context);
 
 		do {
-			subtreeInfo = findCommonSubsets(sourceChildren, targetChildren, marked1, marked2);
+			subtreeInfo = findCommonSubsets(matrix, marked1, marked2);
 			if (subtreeInfo != null) {
 				subtreeInfos.add(subtreeInfo);
 				for (int i = 0; i < subtreeInfo.length; i++) {
@@ -372,15 +519,22 @@ import org.zkoss.zk.ui.Component;
 					marked2[subtreeInfo.newIndex + i] = true;
 				}
 			}
-		} while (subtreeInfo != null);
+		} while (subtreeInfo != null && !_context.isExhausted());
 		return subtreeInfos;
 	}
 
-	private boolean roughlyEqual(ComponentFeature c1, ComponentFeature c2, Map<String, Boolean> uniqueFeatures, boolean sameChildren, boolean recursive) {
+	/*package*/ static boolean roughlyEqual(ComponentFeature c1, ComponentFeature c2, DescriptorTable table, BitSet uniqueFeatures, boolean sameChildren, boolean recursive) {
 		if (c1 == null || c2 == null) return false;
+		// check the widget name first, which doesn't build the children of a lazy one.
 		if (!Objects.equals(c1.getWidgetName(), c2.getWidgetName())) {
 			return false;
 		}
+		if (c1.structuralHash() == c2.structuralHash()) {
+			// confirm it, a collision of the hashes shouldn't change the grouping
+			if (isSameTree(c1, c2)) {
+				return true;
+			}
+		}
 
 		Object textValue1 = c1.getTextValue();
 		Object textValue2 = c2.getTextValue();
@@ -388,24 +542,25 @@ import org.zkoss.zk.ui.Component;
 			return Objects.equals(textValue1, textValue2);
 		}
 
-		List<String> descriptors = c1.getDescriptors();
-		if (uniqueFeatures.containsKey(descriptors)) return true;
-		String cid1 = c1.getId();
-		if (cid1 != null) {
-			if (!Objects.equals(cid1, c2.getId())) {
+		int[] descriptors1 = c1.getDescriptorSymbols(table);
+		int[] descriptors2 = c2.getDescriptorSymbols(table);
+		int cid1 = descriptors1[DescriptorTable.ID];
+		if (cid1 >= 0) {
+			// the same widget name, so the same symbol means the same id
+			if (cid1 != descriptors2[DescriptorTable.ID]) {
 				return false;
 			} else {
-				if (uniqueFeatures.containsKey(c1.getWidgetName() + "#" + cid1)) {
+				if (uniqueFeatures.get(cid1)) {
 					return true;
 				}
 			}
 		}
-		String sclass = (String) c1.getProperties().get("sclass");
+		String sclass = (String) c1.properties().get("sclass");
 		if (sclass != null) {
-			if (!Objects.equals(sclass, c2.getProperties().get("sclass"))) {
+			if (!Objects.equals(sclass, c2.properties().get("sclass"))) {
 				return false;
 			} else {
-				if (uniqueFeatures.containsKey(c1.getWidgetName() + "." + (sclass.replace(" ", ".")))) {
+				if (uniqueFeatures.get(descriptors1[DescriptorTable.SCLASS])) {
 					return true;
 				}
 			}
@@ -414,19 +569,19 @@ import org.zkoss.zk.ui.Component;
 			return true;
 		}
 
-		List<ComponentFeature> sourceChildren = c1.getChildren();
-		List<ComponentFeature> targetChildren = c2.getChildren();
+		List<ComponentFeature> sourceChildren = c1.children();
+		List<ComponentFeature> targetChildren = c2.children();
 
 		if (sourceChildren.size() != targetChildren.size()) {
 			return false;
 		}
 
 		if (recursive) {
-			Map<String, Boolean> childUniqueFeatures = uniqueInBoth(sourceChildren, targetChildren);
+			BitSet childUniqueFeatures = table.uniqueInBoth(sourceChildren, targetChildren);
 			Iterator<ComponentFeature> targetIter = targetChildren.iterator();
 			return sourceChildren.stream().allMatch(comp -> roughlyEqual(comp,
 					targetIter.hasNext() ? targetIter.next() : null,
-					childUniqueFeatures, true, false));
+					table, childUniqueFeatures, true, false));
 		} else {
 			Iterator<ComponentFeature> targetIter = targetChildren.iterator();
 			return sourceChildren.stream().allMatch(comp -> comp.getClass() ==  (targetIter.hasNext() ? targetIter.next().getClass() : null));
@@ -436,151 +591,130 @@ import org.zkoss.zk.ui.Component;
 	/**
 	 * based on https://en.wikibooks.org/wiki/Algorithm_implementation/Strings/Longest_common_substring#JavaScript
 	 */
-	private SubtreeInfo findCommonSubsets(List<ComponentFeature> sourceChildren,
-			List<ComponentFeature> targetChildren, boolean[] marked1, boolean[] marked2) {
+	private SubtreeInfo findCommonSubsets(RoughlyEqualMatrix matrix, boolean[] marked1, boolean[] marked2) {
 
 		int lcsSize = 0;
-		int[] index = new int[2];
+		int index1 = 0, index2 = 0;
 
-		int sourceSize = sourceChildren.size();
-		int targetSize = targetChildren.size();
-		// set up the matching table
-		int[][] matches = new int[sourceSize + 1][targetSize + 1];
-
-		Map<String, Boolean> uniqueFeatures = uniqueInBoth(sourceChildren, targetChildren);
-
-		AtomicBoolean subsetsSame = new AtomicBoolean(sourceSize == targetSize);
-
-		if (subsetsSame.get()) {
-			Iterator<ComponentFeature> targetIter = targetChildren.iterator();
-			sourceChildren.stream().anyMatch(componentFeature -> {
-				List<String> descriptors1 = componentFeature.getDescriptors();
-				if (targetIter.hasNext()) {
-					List<String> descriptors2 = targetIter.next().getDescriptors();
-					if (descriptors1.size() != descriptors2.size()) {
-						subsetsSame.set(false);
-						return true;
-					}
-					for (int i = 0, j = descriptors1.size(); i < j; i++) {
-						if (!Objects.equals(descriptors1.get(i), descriptors2.get(i))) {
-							subsetsSame.set(false);
-							break;
-						}
-					}
-				}
-				return !subsetsSame.get();
-			});
+		int sourceSize = matrix._sourceChildren.size();
+		int targetSize = matrix._targetChildren.size();
+		// set up the matching table with two rolling rows, the previous one and the current one.
+		if (!_context.computeCells((long) sourceSize * targetSize)) {
+			return null; // no more subsets once the budget runs out
 		}
+		int rowSize = targetSize + 1;
+		int[] matches = _context.getTable(rowSize * 2);
+		int previous = 0, current = rowSize;
 
 		for (int c1Index = 0; c1Index < sourceSize; ++c1Index) {
-			ComponentFeature c1 = sourceChildren.get(c1Index);
 			for (int c2Index = 0; c2Index < targetSize; ++c2Index) {
-				ComponentFeature c2 = targetChildren.get(c2Index);
 				// calculate cost/score
-				if (!marked1[c1Index] && !marked2[c2Index] && roughlyEqual(c1, c2, uniqueFeatures, subsetsSame.get(), true)) {
-					matches[c1Index + 1][c2Index + 1] = matches[c1Index][c2Index] + 1;
-					if (matches[c1Index + 1][c2Index + 1] > lcsSize) {
-						lcsSize = matches[c1Index + 1][c2Index + 1];
-						index = new int[]{c1Index + 1, c2Index + 1};
+				if (!marked1[c1Index] && !marked2[c2Index] && matrix.isEqual(c1Index, c2Index)) {
+					int match = matches[previous + c2Index] + 1;
+					matches[current + c2Index + 1] = match;
+					if (match > lcsSize) {
+						lcsSize = match;
+						index1 = c1Index + 1;
+						index2 = c2Index + 1;
 					}
 				} else {
-					matches[c1Index + 1][c2Index + 1] = 0;
+					matches[current + c2Index + 1] = 0;
 				}
 			}
+			int swap = previous;
+			previous = current;
+			current = swap;
 		}
 		if (lcsSize == 0) return null;
-		return new SubtreeInfo(index[0] - lcsSize, index[1] - lcsSize, lcsSize);
-	}
-	private Map<String, Boolean> uniqueInBoth(List<ComponentFeature> sourceChildren, List<ComponentFeature> targetChildren) {
-		Map<String, Boolean> uniqueFeatures = findUniqueDescriptors(sourceChildren);
-		uniqueFeatures.keySet().retainAll(findUniqueDescriptors(targetChildren).keySet());
-		return uniqueFeatures;
+		return new SubtreeInfo(index1 - lcsSize, index2 - lcsSize, lcsSize);
 	}
-
-	private Map<String, Boolean> findUniqueDescriptors(List<ComponentFeature> sourceChildren) {
-		Map<String, Boolean> uniqueFeatures = new HashMap<>();
-		Map<String, Boolean> duplicatedFeatures = new HashMap<>();
-
-		sourceChildren.forEach(componentFeature -> {
-			componentFeature.getDescriptors().forEach(descriptor -> {
-				if (uniqueFeatures.containsKey(descriptor)) {
-					uniqueFeatures.remove(descriptor);
-					duplicatedFeatures.put(descriptor, Boolean.TRUE);
-				} else if (!duplicatedFeatures.containsKey(descriptor)) {
-					uniqueFeatures.put(descriptor, Boolean.TRUE);
-				}
-			});
-		});
-		return uniqueFeatures;
+	/**
+	 * Returns whether both children have the same descriptors one by one.
+	 */
+	/*package*/ static boolean isSubsetsSame(DescriptorTable table, List<ComponentFeature> sourceChildren, List<ComponentFeature> targetChildren) {
+		if (sourceChildren.size() != targetChildren.size()) {
+			return false;
+		}
+		Iterator<ComponentFeature> targetIter = targetChildren.iterator();
+		for (ComponentFeature componentFeature : sourceChildren) {
+			if (!Arrays.equals(componentFeature.getDescriptorSymbols(table),
+					targetIter.next().getDescriptorSymbols(table))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	private List<Instruction> findOuterDiff(ComponentFeature source,
-			ComponentFeature target, List<Integer> route) {
+			ComponentFeature target, Route route) {
 		List<Instruction> diffs = new ArrayList<>();
 		if (!Objects.equals(source.getWidgetName(), target.getWidgetName())) {
-			if (route.isEmpty()) {
+			if (route.isRoot()) {
 				throw new RuntimeException(
 						"Top level nodes have to be of the same kind.");
 			}
-			return Collections.singletonList(Instruction.newBuilder(
-							Instruction.Action.replaceElement)
-					.setOldValue(source.clone()).setNewValue(target.clone())
-					.setRoute(route).build());
+			return Collections.singletonList(newReplaceElement(source, target, route));
 		}
-		if (!route.isEmpty() && _options.getMaxChildCount() < Math.abs(
-				source.getChildren().size() - target.getChildren().size())) {
-			return Collections.singletonList(Instruction.newBuilder(
-							Instruction.Action.replaceElement)
-					.setOldValue(source.clone()).setNewValue(target.clone())
-					.setRoute(route).build());
+		if (!route.isRoot() && _options.getMaxChildCount() < Math.abs(
+				source.childCount() - target.childCount())
+				&& KeyedReconciler.of(source.children(), target.children(),
+						_options.getKeyExtractor()) == null) {
+			return Collections.singletonList(newReplaceElement(source, target, route));
 		}
+		diffFeatures(diffs::add, route, source, target);
+		return diffs;
+	}
 
+	/**
+	 * Diffs all the features of both component features, excluding the children.
+	 */
+	/*package*/ static void diffFeatures(Consumer<Instruction> diffs, Route route,
+			ComponentFeature source, ComponentFeature target) {
 		// check properties.
-		diffMap(diffs, route, target, source.getProperties(), target.getProperties(),
+		diffMap(diffs, route, target, source.properties(), target.properties(),
 				Instruction.Action.addProperty,
 				Instruction.Action.removeProperty,
 				Instruction.Action.modifyProperty);
 
 		// check widget overrides.
-		diffMap(diffs, route, null, source.getWidgetOverrides(), target.getWidgetOverrides(),
+		diffMap(diffs, route, null, source.widgetOverrides(), target.widgetOverrides(),
 				Instruction.Action.addWidgetOverride,
 				Instruction.Action.removeWidgetOverride,
 				Instruction.Action.modifyWidgetOverride);
 
 		// check widget attributes.
-		diffMap(diffs, route, null, source.getWidgetAttributes(), target.getWidgetAttributes(),
+		diffMap(diffs, route, null, source.widgetAttributes(), target.widgetAttributes(),
 				Instruction.Action.addWidgetAttribute,
 				Instruction.Action.removeWidgetAttribute,
 				Instruction.Action.modifyWidgetAttribute);
 
 		// check widget listeners.
-		diffMap(diffs, route, null, source.getWidgetListeners(), target.getWidgetListeners(),
+		diffMap(diffs, route, null, source.widgetListeners(), target.widgetListeners(),
 				Instruction.Action.addWidgetListener,
 				Instruction.Action.removeWidgetListener,
 				Instruction.Action.modifyWidgetListener);
 
 		// check widget listeners.
-		diffMap(diffs, route, null, source.getClientAttributes(), target.getClientAttributes(),
+		diffMap(diffs, route, null, source.clientAttributes(), target.clientAttributes(),
 				Instruction.Action.addClientAttribute,
 				Instruction.Action.removeClientAttribute,
 				Instruction.Action.modifyClientAttribute);
 
 
 		// check component attributes.
-		diffMap(diffs, route, null, source.getAttributes(), target.getAttributes(),
+		diffMap(diffs, route, null, source.attributes(), target.attributes(),
 				Instruction.Action.addAttribute,
 				Instruction.Action.removeAttribute,
 				Instruction.Action.modifyAttribute);
 
 		// check component dynamic properties.
-		diffMap(diffs, route, null, source.getDynamicProperties(), target.getDynamicProperties(),
+		diffMap(diffs, route, null, source.dynamicProperties(), target.dynamicProperties(),
 				Instruction.Action.addDynamicProperty,
 				Instruction.Action.removeDynamicProperty,
 				Instruction.Action.modifyDynamicProperty);
-		return diffs;
 	}
 
-	private static void diffMap(List<Instruction> diffs, List<Integer> route, ComponentFeature targetElement,
+	private static void diffMap(Consumer<Instruction> diffs, Route route, ComponentFeature targetElement,
 			Map<String, ?> source, Map<String, ?> target,
 			Instruction.Action addAction, Instruction.Action removeAction,
 			Instruction.Action modifyAction) {
@@ -594,17 +728,23 @@ import org.zkoss.zk.ui.Component;
 		}
 		if (target.isEmpty() && source.isEmpty()) return;
 
+		if (source instanceof CompactMap && target instanceof CompactMap) {
+			diffCompactMap(diffs, route, targetElement, (CompactMap<?>) source,
+					(CompactMap<?>) target, addAction, removeAction, modifyAction);
+			return;
+		}
+
 		Map<String, ?> cloneTarget = new HashMap<>(target); // clone it
 
 		for (Map.Entry<String, ?> me1 : source.entrySet()) {
 			if (!cloneTarget.containsKey(me1.getKey())) {
-				diffs.add(Instruction.newBuilder(removeAction).setRoute(route)
+				diffs.accept(Instruction.newBuilder(removeAction).setRoute(route)
 						.setName(me1.getKey()).setValue(me1.getValue()).setElement(targetElement)
 						.build());
 			} else {
 				Object m2Value = cloneTarget.remove(me1.getKey());
 				if (!Objects.equals(me1.getValue(), m2Value)) {
-					diffs.add(
+					diffs.accept(
 							Instruction.newBuilder(modifyAction).setRoute(route)
 									.setName(me1.getKey())
 									.setOldValue(me1.getValue())
@@ -616,30 +756,123 @@ import org.zkoss.zk.ui.Component;
 
 		for (Map.Entry<String, ?> me2 : cloneTarget.entrySet()) {
 			// add OP
-			diffs.add(Instruction.newBuilder(addAction).setRoute(route)
+			diffs.accept(Instruction.newBuilder(addAction).setRoute(route)
 					.setName(me2.getKey()).setValue(me2.getValue())
 					.setElement(targetElement).build());
 		}
 	}
 
+	/**
+	 * Diffs both compact maps by walking their sorted keys together, without
+	 * cloning the target map.
+	 */
+	private static void diffCompactMap(Consumer<Instruction> diffs, Route route,
+			ComponentFeature targetElement, CompactMap<?> source, CompactMap<?> target,
+			Instruction.Action addAction, Instruction.Action removeAction,
+			Instruction.Action modifyAction) {
+		int sourceSize = source.size(), targetSize = target.size();
+		int i = 0, j = 0;
+		while (i < sourceSize) {
+			String key = source.keyAt(i);
+			int cmp = j < targetSize ? key.compareTo(target.keyAt(j)) : -1;
+			if (cmp < 0) {
+				diffs.accept(Instruction.newBuilder(removeAction).setRoute(route)
+						.setName(key).setValue(source.valueAt(i)).setElement(targetElement)
+						.build());
+				i++;
+			} else if (cmp > 0) {
+				j++; // added, see below
+			} else {
+				Object value1 = source.valueAt(i), value2 = target.valueAt(j);
+				if (!Objects.equals(value1, value2)) {
+					diffs.accept(
+							Instruction.newBuilder(modifyAction).setRoute(route)
+									.setName(key)
+									.setOldValue(value1)
+									.setNewValue(value2)
+									.setElement(targetElement).build());
+				}
+				i++;
+				j++;
+			}
+		}
+
+		// add OP, after the remove and modify ones as the other path does.
+		for (i = 0, j = 0; j < targetSize; j++) {
+			String key = target.keyAt(j);
+			while (i < sourceSize && source.keyAt(i).compareTo(key) < 0) {
+				i++;
+			}
+			if (i < sourceSize && source.keyAt(i).equals(key)) {
+				continue;
+			}
+			diffs.accept(Instruction.newBuilder(addAction).setRoute(route)
+					.setName(key).setValue(target.valueAt(j))
+					.setElement(targetElement).build());
+		}
+	}
+
 	private boolean isEqual(ComponentFeature c1, ComponentFeature c2) {
-		if (!_options.isSkipRoot() || c1 != _source) {
+		if (_options.isSkipRoot() && c1 == _source) {
 			// ignore for skip root check
-			if (!Objects.equals(c1.getWidgetName(), c2.getWidgetName())) {
-				return false;
-			}
-			if (!c1.match(c2)) {
+			return isEqualChildren(c1, c2);
+		}
+		return isSameTree(c1, c2);
+	}
+
+	/**
+	 * Returns whether both subtrees are exactly the same.
+	 */
+	/*package*/ static boolean isSameTree(ComponentFeature c1, ComponentFeature c2) {
+		// check the root first, which doesn't build the children of a lazy one.
+		if (c1.childCount() != c2.childCount() || !Objects.equals(c1.getWidgetName(), c2.getWidgetName())) {
+			return false;
+		}
+		if (c1.hasPendingChildren() || c2.hasPendingChildren()) {
+			// compare top-down instead, which builds the children up to the first mismatch only.
+			return c1.matchAll(c2) && isEqualChildren(c1, c2);
+		}
+		if (c1.structuralHash() != c2.structuralHash()) {
+			return false;
+		}
+		if (!c1.matchAll(c2)) {
+			return false;
+		}
+		return isEqualChildren(c1, c2);
+	}
+
+	/**
+	 * Returns whether both subtrees are exactly the same in the top-down order,
+	 * unlike {@link #isSameTree(ComponentFeature, ComponentFeature)}, it doesn't
+	 * compute the structural hashes of the whole subtrees first, so it stops
+	 * at the first mismatch for the fresh snapshots.
+	 */
+	private static boolean matchTree(ComponentFeature c1, ComponentFeature c2) {
+		return c1.mayEqual(c2) && c1.matchAll(c2) && matchChildren(c1, c2);
+	}
+
+	private static boolean matchChildren(ComponentFeature c1, ComponentFeature c2) {
+		List<ComponentFeature> children1 = c1.children();
+		List<ComponentFeature> children2 = c2.children();
+		if (children1.size() != children2.size()) {
+			return false;
+		}
+		for (int i = 0, j = children1.size(); i < j; i++) {
+			if (!matchTree(children1.get(i), children2.get(i))) {
 				return false;
 			}
 		}
+		return true;
+	}
 
-		if (c1.getChildren().size() != c2.getChildren().size()) {
+	private static boolean isEqualChildren(ComponentFeature c1, ComponentFeature c2) {
+		if (c1.childCount() != c2.childCount()) {
 			return false;
 		}
-		Iterator<ComponentFeature> i1 = c1.getChildren().iterator();
-		Iterator<ComponentFeature> i2 = c2.getChildren().iterator();
+		Iterator<ComponentFeature> i1 = c1.children().iterator();
+		Iterator<ComponentFeature> i2 = c2.children().iterator();
 		while (i1.hasNext() && i2.hasNext()) {
-			if (!isEqual(i1.next(), i2.next())) {
+			if (!isSameTree(i1.next(), i2.next())) {
 				return false;
 			}
 		}
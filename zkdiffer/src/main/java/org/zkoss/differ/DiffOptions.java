@@ -11,6 +11,9 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 */
 package org.zkoss.differ;
 
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
+
 import javax.annotation.Nullable;
 
 import org.immutables.value.Value;
@@ -46,6 +49,31 @@ public interface DiffOptions {
 	@Nullable
 	DiffRange getTargetRange();
 
+	/**
+	 * Returns whether to clone the ZK component tree as a snapshot before building
+	 * the component features.
+	 * <p>If false, the live component tree is walked read-only without cloning,
+	 * which saves the heap and the time for a big page, but the components should
+	 * stay unchanged until patching, because the newly added components are cloned
+	 * from them at that moment. (See {@link ComponentFeature#toComponent()})
+	 * <p>Default: true
+	 */
+	default boolean isCloneSnapshot() {
+		return true;
+	}
+
+	/**
+	 * Returns whether to instantiate the added and replaced components from their
+	 * component features when patching, instead of cloning the owner components
+	 * with their whole subtrees. (See {@link ComponentFeature#instantiate()})
+	 * <p>It's ignored with {@link #getPropertyFilter()}, because the dropped
+	 * properties cannot be instantiated.
+	 * <p>Default: false
+	 */
+	default boolean isInstantiateFromSnapshot() {
+		return false;
+	}
+
 	/**
 	 * Returns whether not to diff the root component.
 	 * @return true to skip diffing the root component.
@@ -54,6 +82,84 @@ public interface DiffOptions {
 		return false;
 	}
 
+	/**
+	 * Returns the engine to find the differences.
+	 * <p>Default: {@link Engine#ITERATIVE}
+	 */
+	default Engine getEngine() {
+		return Engine.ITERATIVE;
+	}
+
+	/**
+	 * Returns the key extractor to reconcile the children by keys, if any.
+	 * <p>If all the children on both sides have unique keys, they are matched by
+	 * the keys in linear time and relocated with the minimal moves, regardless
+	 * of {@link #getMaxChildCount()}.
+	 * @see KeyExtractor#ofId()
+	 * @see KeyExtractor#ofAttribute(String)
+	 */
+	@Nullable
+	KeyExtractor getKeyExtractor();
+
+	/**
+	 * Returns the time budget of diffing, if any.
+	 * <p>Once the budget runs out, the remaining different subtrees are replaced
+	 * as a whole instead of being diffed further, so the result is still correct
+	 * but may be less fine-grained.
+	 */
+	@Nullable
+	Duration getTimeBudget();
+
+	/**
+	 * Returns the max number of the component features to visit, 0 means unlimited.
+	 * <p>Default: 0
+	 * @see #getTimeBudget()
+	 */
+	default int getMaxVisitedNodes() {
+		return 0;
+	}
+
+	/**
+	 * Returns the max number of the cells of the longest common subsequence
+	 * tables to compute for aligning the children, 0 means unlimited.
+	 * <p>Default: 0
+	 * @see #getTimeBudget()
+	 */
+	default long getMaxLcsCells() {
+		return 0;
+	}
+
+	/**
+	 * Returns the fork/join pool to diff the paired child subtrees concurrently, if any.
+	 * <p>Note: it only works with {@link Engine#SINGLE_PASS}, because {@link Engine#ITERATIVE}
+	 * patches the source component feature virtually batch by batch. The instructions
+	 * are still in the same order as diffing sequentially.
+	 * @see #getParallelThreshold()
+	 */
+	@Nullable
+	ForkJoinPool getForkJoinPool();
+
+	/**
+	 * Returns the min number of the component features of a pair of child subtrees
+	 * to be diffed in another task of {@link #getForkJoinPool()}.
+	 * <p>Default: 256
+	 */
+	default int getParallelThreshold() {
+		return 256;
+	}
+
+	/**
+	 * Returns the filter of the properties, attributes, dynamic properties and client
+	 * attributes to capture, if any.
+	 * <p>The rejected ones are dropped while building the component features, so
+	 * they are never compared nor patched.
+	 * <p>Note: it's applied when building from the components only, not to the
+	 * given component features.
+	 * @see PropertyFilter#exclude(PropertyFilter.Type, String...)
+	 */
+	@Nullable
+	PropertyFilter getPropertyFilter();
+
 	static DiffOptions ofSourceRange(DiffRange range) {
 		return new Builder().setSourceRange(range).build();
 	}
@@ -67,4 +173,23 @@ public interface DiffOptions {
 	}
 
 	class Builder extends ImmutableDiffOptions.Builder {}
+
+	/**
+	 * The engine to find the differences.
+	 */
+	enum Engine {
+		/**
+		 * Finds the differences batch by batch, and applies each batch into
+		 * the source component feature virtually until no more differences are found.
+		 */
+		ITERATIVE,
+
+		/**
+		 * Produces all the differences in one top-down pass without
+		 * patching the source component feature virtually.
+		 * <p>Note: a group of moved children is represented by removing and
+		 * adding elements, instead of relocating the group.
+		 */
+		SINGLE_PASS
+	}
 }
@@ -0,0 +1,182 @@
+/* DiffSession.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		11:20 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.zkoss.zk.ui.Component;
+
+/**
+ * A session to merge the target components into the same source component
+ * repeatedly, which keeps the snapshot of the source component between merges,
+ * so that only the components {@link #invalidate(Component) invalidated} since
+ * the last merge are rendered again.
+ * <p>After a successful merge, the source component is the same as the target one,
+ * so the snapshot of the target component is kept as the next snapshot of the source.
+ * The target component is cloned as the snapshot even if {@link DiffOptions#isCloneSnapshot()}
+ * is false, so it can be changed or reused once merged.
+ * <p>Note: the changes made to the source component outside of this session
+ * have to be notified by {@link #invalidate(Component)} (or {@link #invalidateAll()}),
+ * otherwise the next merge diffs with the stale snapshot, i.e. such a change is
+ * neither detected nor reverted, except that a different number of children or
+ * a different widget of a component is detected. And this session isn't thread-safe.
+ * <p>For example,
+ * <pre><code>
+ * DiffSession session = new DiffSession(host, options);
+ * session.merge(createTarget());
+ * label.setValue("changed");
+ * session.invalidate(label);
+ * session.merge(createTarget());
+ * </code></pre>
+ * @author jumperchen
+ */
+public class DiffSession {
+	private final Component _source;
+	private final DiffOptions _options;
+	// the options to build the target, which is always cloned to be kept as a snapshot
+	private final DiffOptions _targetOptions;
+	private final Set<Component> _dirty = new HashSet<>();
+	private ComponentFeature _snapshot;
+
+	/**
+	 * Creates a session of the given source component with the {@link DiffOptions#DEFAULT} option.
+	 */
+	public DiffSession(Component source) {
+		this(source, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Creates a session of the given source component.
+	 * <p>Note: {@link DiffOptions#getSourceRange()} and {@link DiffOptions#getTargetRange()}
+	 * aren't supported, because the range of the source changes after each merge.
+	 * @throws IllegalArgumentException if the source component is null.
+	 * @throws UnsupportedOperationException if any diff range is specified.
+	 */
+	public DiffSession(Component source, DiffOptions options) {
+		if (source == null) {
+			throw new IllegalArgumentException("Component cannot be null");
+		}
+		if (options.getSourceRange() != null || options.getTargetRange() != null) {
+			throw new UnsupportedOperationException("The diff range isn't supported by a session");
+		}
+		_source = source;
+		_options = options;
+		_targetOptions = options.isCloneSnapshot() ? options
+				: DiffOptions.newBuilder().from(options).setCloneSnapshot(true).build();
+	}
+
+	/**
+	 * Returns the source component of this session.
+	 */
+	public Component getSource() {
+		return _source;
+	}
+
+	/**
+	 * Notifies that the given component of the source has been changed outside
+	 * of this session, and the whole subtree of it will be rendered again
+	 * on the next merge.
+	 */
+	public void invalidate(Component component) {
+		if (_snapshot != null) {
+			_dirty.add(component);
+		}
+	}
+
+	/**
+	 * Discards the snapshot of the source, and the whole source will be rendered
+	 * again on the next merge.
+	 */
+	public void invalidateAll() {
+		_snapshot = null;
+		_dirty.clear();
+	}
+
+	/**
+	 * Merges the differences of the whole tree between the source component and
+	 * the target component.
+	 * @return true if succeed.
+	 * @see Differ#merge(Component, Component, DiffOptions)
+	 */
+	public boolean merge(Component target) {
+		ComponentFeature targetFeature = ComponentFeature.build(target, _targetOptions);
+		List<Instruction> diffs = Differ.diff(snapshot(), targetFeature, _options);
+		return afterPatch(Differ.patch(_source, diffs, _options), targetFeature);
+	}
+
+	/**
+	 * Merges the differences of the subtree between the source component and
+	 * the target component. (Excluding both root components themselves)
+	 * @return true if succeed.
+	 * @see Differ#mergeInner(Component, Component, DiffOptions)
+	 */
+	public boolean mergeInner(Component target) {
+		ComponentFeature targetFeature = ComponentFeature.build(target, _targetOptions);
+		List<Instruction> diffs = Differ.diffInner(snapshot(), targetFeature, _options);
+		ComponentFeature root = _snapshot.clone();
+		root.replaceChildren(targetFeature.children());
+		return afterPatch(Differ.patch(_source, diffs, _options), root);
+	}
+
+	/**
+	 * Returns a clone of the snapshot of the source for diffing, which may
+	 * change the given snapshot virtually.
+	 */
+	private ComponentFeature snapshot() {
+		if (_snapshot == null || isDirty(_snapshot, _source)) {
+			_snapshot = ComponentFeature.build(_source, _options);
+		} else {
+			refresh(_snapshot, _source);
+		}
+		_dirty.clear();
+		return _snapshot.clone();
+	}
+
+	private boolean afterPatch(boolean success, ComponentFeature next) {
+		// the source may be patched partially, take a new snapshot next time.
+		_snapshot = success ? next : null;
+		_dirty.clear();
+		return success;
+	}
+
+	private boolean isDirty(ComponentFeature snapshot, Component component) {
+		return _dirty.contains(component) || snapshot.children().size() != component.getChildren().size()
+				|| !snapshot.getWidgetName().equals(component.getDefinition().getName());
+	}
+
+	/**
+	 * Renders the dirty subtrees of the given snapshot again, and returns whether
+	 * any of them is replaced.
+	 */
+	private boolean refresh(ComponentFeature snapshot, Component component) {
+		List<ComponentFeature> children = snapshot.children();
+		boolean changed = false;
+		int index = 0;
+		for (Component child = component.getFirstChild(); child != null;
+				child = child.getNextSibling(), index++) {
+			ComponentFeature feature = children.get(index);
+			if (isDirty(feature, child)) {
+				snapshot.replaceChild(index, ComponentFeature.build(child, _options));
+				children = snapshot.children(); // may be copied on write
+				changed = true;
+			} else if (refresh(feature, child)) {
+				changed = true;
+			}
+		}
+		if (changed) {
+			snapshot.invalidateHash();
+		}
+		return changed;
+	}
+}
@@ -12,8 +12,15 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 package org.zkoss.differ;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 import org.zkoss.zk.ui.Component;
+import org.zkoss.zk.ui.Desktop;
+import org.zkoss.zk.ui.Executions;
+import org.zkoss.zk.ui.event.Event;
+import org.zkoss.zk.ui.event.EventListener;
 
 /**
  * The differ util API to diff the differences between the souce compoent and the target
@@ -37,6 +44,18 @@ public class Differ {
 		return new DiffFinder(source, target, options).findOuter();
 	}
 
+	/**
+	 * Diffs the differences of the whole tree between the source component and target component,
+	 * and passes each instruction to the given consumer as soon as it's final, in the same
+	 * order as {@link #diff(Component, Component, DiffOptions)} returns.
+	 * <p>Note: both components are taken as snapshots before diffing, so the consumer is
+	 * allowed to {@link #patch(Component, List) patch} the source component on the fly.
+	 */
+	public static void diff(Component source, Component target, DiffOptions options,
+			Consumer<Instruction> consumer) {
+		new DiffFinder(source, target, options).findOuter(consumer);
+	}
+
 	/**
 	 * Diffs the differences of the whole tree between the source component and target component
 	 * with the {@link DiffOptions#DEFAULT} option.
@@ -52,6 +71,31 @@ public class Differ {
 		return new DiffFinder(source, target, options).findOuter();
 	}
 
+	/**
+	 * Diffs the differences of the whole tree between the source component and target component,
+	 * and passes each instruction to the given consumer as soon as it's final.
+	 * @see #diff(Component, Component, DiffOptions, Consumer)
+	 */
+	public static void diff(ComponentFeature source, ComponentFeature target, DiffOptions options,
+			Consumer<Instruction> consumer) {
+		new DiffFinder(source, target, options).findOuter(consumer);
+	}
+
+	/**
+	 * Diffs the differences of the whole tree between the source component and target
+	 * component with the given executor, e.g. not to block the event thread of ZK.
+	 * <p>Note: the children of both component features are built on the caller's thread
+	 * before diffing, because building them renders the components, and both
+	 * component features shouldn't be changed until the result is completed.
+	 * @see #mergeAsync(Component, Component, DiffOptions, Executor)
+	 */
+	public static CompletableFuture<List<Instruction>> diffAsync(ComponentFeature source,
+			ComponentFeature target, DiffOptions options, Executor executor) {
+		source.buildAll();
+		target.buildAll();
+		return CompletableFuture.supplyAsync(() -> diff(source, target, options), executor);
+	}
+
 	/**
 	 * Diffs the differences of the subtree between the source component and target component
 	 * with the {@link DiffOptions#DEFAULT} option. (Excluding both root components themselves)
@@ -68,6 +112,17 @@ public class Differ {
 		return new DiffFinder(source, target, options).findInner();
 	}
 
+	/**
+	 * Diffs the differences of the subtree between the source component and target component,
+	 * and passes each instruction to the given consumer as soon as it's final.
+	 * (Excluding both root components themselves)
+	 * @see #diff(Component, Component, DiffOptions, Consumer)
+	 */
+	public static void diffInner(ComponentFeature source, ComponentFeature target, DiffOptions options,
+			Consumer<Instruction> consumer) {
+		new DiffFinder(source, target, options).findInner(consumer);
+	}
+
 	/**
 	 * Diffs the differences of the subtree between the source component and target component
 	 * with the {@link DiffOptions#DEFAULT} option. (Excluding both root components themselves)
@@ -84,12 +139,139 @@ public class Differ {
 		return new DiffFinder(source, target, options).findInner();
 	}
 
+	/**
+	 * Diffs the differences of the subtree between the source component and target component,
+	 * and passes each instruction to the given consumer as soon as it's final.
+	 * (Excluding both root components themselves)
+	 * @see #diff(Component, Component, DiffOptions, Consumer)
+	 */
+	public static void diffInner(Component source, Component target, DiffOptions options,
+			Consumer<Instruction> consumer) {
+		new DiffFinder(source, target, options).findInner(consumer);
+	}
+
+	/**
+	 * Returns whether there is any difference of the whole tree between the source
+	 * component and target component with the {@link DiffOptions#DEFAULT} option.
+	 * <p>It's much cheaper than checking whether {@link #diff(Component, Component)}
+	 * is empty, because it stops at the first mismatch without producing any instruction.
+	 */
+	public static boolean hasDifferences(Component source, Component target) {
+		return hasDifferences(source, target, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Returns whether there is any difference of the whole tree between the source
+	 * component and target component.
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasDifferences(Component source, Component target, DiffOptions options) {
+		return hasDifferences(ComponentFeature.build(source, options),
+				DiffFinder.buildTarget(target, options), options);
+	}
+
+	/**
+	 * Returns whether there is any difference of the whole tree between the source
+	 * component and target component with the {@link DiffOptions#DEFAULT} option.
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasDifferences(ComponentFeature source, ComponentFeature target) {
+		return hasDifferences(source, target, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Returns whether there is any difference of the whole tree between the source
+	 * component and target component.
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasDifferences(ComponentFeature source, ComponentFeature target, DiffOptions options) {
+		return new DiffFinder(source, target, options).hasOuterDifferences();
+	}
+
+	/**
+	 * Returns whether there is any difference of the subtree between the source
+	 * component and target component with the {@link DiffOptions#DEFAULT} option.
+	 * (Excluding both root components themselves)
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasInnerDifferences(Component source, Component target) {
+		return hasInnerDifferences(source, target, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Returns whether there is any difference of the subtree between the source
+	 * component and target component. (Excluding both root components themselves)
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasInnerDifferences(Component source, Component target, DiffOptions options) {
+		return hasInnerDifferences(ComponentFeature.build(source, options),
+				DiffFinder.buildTarget(target, options), options);
+	}
+
+	/**
+	 * Returns whether there is any difference of the subtree between the source
+	 * component and target component with the {@link DiffOptions#DEFAULT} option.
+	 * (Excluding both root components themselves)
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasInnerDifferences(ComponentFeature source, ComponentFeature target) {
+		return hasInnerDifferences(source, target, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Returns whether there is any difference of the subtree between the source
+	 * component and target component. (Excluding both root components themselves)
+	 * @see #hasDifferences(Component, Component)
+	 */
+	public static boolean hasInnerDifferences(ComponentFeature source, ComponentFeature target, DiffOptions options) {
+		return new DiffFinder(source, target, options).hasInnerDifferences();
+	}
+
 	/**
 	 * Patches the given differences into the source component.
 	 * @return true if succeed.
 	 */
 	public static boolean patch(Component source, List<Instruction> diffs) {
-		return Patcher.patch(source, diffs);
+		return patch(source, diffs, DiffOptions.DEFAULT);
+	}
+
+	/**
+	 * Patches the given differences into the source component with the given options,
+	 * e.g. {@link DiffOptions#isInstantiateFromSnapshot()}.
+	 * @return true if succeed.
+	 */
+	public static boolean patch(Component source, List<Instruction> diffs, DiffOptions options) {
+		return Patcher.patch(source, diffs, options);
+	}
+
+	/**
+	 * Prepares the given differences to patch, whose new components of the added and
+	 * replaced elements are built concurrently with the given executor in advance,
+	 * so that {@link PreparedPatch#apply(Component)} only attaches them, which
+	 * shortens the time inside the ZK execution for a big merge.
+	 * <p>Note: it doesn't wait for the components to be built, unless the differences
+	 * are diffed without {@link DiffOptions#isCloneSnapshot()}, whose live components
+	 * are cloned on the caller's thread instead.
+	 * @param diffs the differences to patch
+	 * @param options the options used to diff them, e.g. {@link DiffOptions#isInstantiateFromSnapshot()}
+	 * @param executor the executor to build the new components, e.g. {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 * @return the future of the prepared patch, completed once all of them are built.
+	 */
+	public static CompletableFuture<PreparedPatch> prepare(List<Instruction> diffs, DiffOptions options,
+			Executor executor) {
+		return PreparedPatch.prepare(diffs, options, executor);
+	}
+
+	/**
+	 * Resolves how to set the properties of the given component classes in advance,
+	 * e.g. at startup, so that the first {@link #patch(Component, List) patch} of them
+	 * needs no reflection. Otherwise, they're resolved on the first use.
+	 */
+	@SafeVarargs
+	public static void warmUp(Class<? extends Component>... classes) {
+		for (Class<? extends Component> cls : classes) {
+			PropertyAccessorRegistry.warmUp(cls);
+		}
 	}
 
 	/**
@@ -111,7 +293,63 @@ public class Differ {
 	 * @see #patch(Component, List)
 	 */
 	public static boolean merge(Component source, Component target, DiffOptions options) {
-		return patch(source, diff(source, target, options));
+		return patch(source, diff(source, target, options), options);
+	}
+
+	/**
+	 * Merges the differences of the whole tree between the source component and
+	 * the target component asynchronously, which takes both snapshots on the
+	 * caller's thread, diffs them and builds the new components with the given
+	 * executor, and then patches the source component in the ZK execution of its
+	 * desktop by {@link Executions#schedule(Desktop, EventListener, Event)}, so the
+	 * event thread isn't blocked while diffing.
+	 * <p>Note: the server push of the desktop has to be enabled, if the source
+	 * component is attached, otherwise, it's patched on the thread of the executor.
+	 * And the source component shouldn't be changed until it's patched.
+	 * <p>The target component is cloned as a snapshot even if
+	 * {@link DiffOptions#isCloneSnapshot()} is false, so it can be changed once
+	 * this method returns.
+	 * @return the future of whether succeed.
+	 * @see #diffAsync(ComponentFeature, ComponentFeature, DiffOptions, Executor)
+	 */
+	public static CompletableFuture<Boolean> mergeAsync(Component source, Component target,
+			DiffOptions options, Executor executor) {
+		Desktop desktop = source.getDesktop();
+		if (desktop != null && !desktop.isServerPushEnabled()) {
+			throw new RuntimeException("Server push is not enabled for [" + desktop + "]");
+		}
+		ComponentFeature sourceFeature = ComponentFeature.build(source, options);
+		// the target is always cloned here, because the new components are built
+		// from its owners on the executor, where the live ones are unsafe to read
+		DiffOptions targetOptions = new DiffOptions.Builder().from(options).setCloneSnapshot(true).build();
+		ComponentFeature targetFeature = DiffFinder.buildTarget(target, targetOptions);
+		CompletableFuture<Boolean> result = new CompletableFuture<>();
+		diffAsync(sourceFeature, targetFeature, options, executor)
+				// build the new components on the same thread, not to wait for the executor
+				.thenCompose(diffs -> prepare(diffs, targetOptions, Runnable::run))
+				.whenComplete((patch, error) -> {
+					if (error != null) {
+						result.completeExceptionally(error);
+					} else if (desktop == null) {
+						complete(result, patch, source);
+					} else {
+						try {
+							Executions.schedule(desktop, event -> complete(result, patch, source),
+									new Event("onMergeAsync"));
+						} catch (Throwable t) {
+							result.completeExceptionally(t);
+						}
+					}
+				});
+		return result;
+	}
+
+	private static void complete(CompletableFuture<Boolean> result, PreparedPatch patch, Component source) {
+		try {
+			result.complete(patch.apply(source));
+		} catch (Throwable t) {
+			result.completeExceptionally(t);
+		}
 	}
 
 	/**
@@ -136,6 +374,6 @@ public class Differ {
 	 * @see #patch(Component, List)
 	 */
 	public static boolean mergeInner(Component source, Component target, DiffOptions options) {
-		return patch(source, diffInner(source, target, options));
+		return patch(source, diffInner(source, target, options), options);
 	}
 }
@@ -11,6 +11,9 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 */
 package org.zkoss.differ;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -47,8 +50,18 @@ public interface Instruction {
 
 	/**
 	 * Returns the route of the updated component feature.
+	 * @see #getRouteIndexes()
 	 */
-	List<Integer> getRoute();
+	@Value.NonAttribute
+	default List<Integer> getRoute() {
+		return getRouteIndexes();
+	}
+
+	/**
+	 * Returns the route of the updated component feature as the child indexes
+	 * backed by an int array, which can be read without boxing.
+	 */
+	Route getRouteIndexes();
 
 	/**
 	 * Returns the old value, if any.
@@ -111,5 +124,80 @@ public interface Instruction {
 	}
 
 	class Builder extends ImmutableInstruction.Builder {
+		// the route set so far, which is read back from the generated builder,
+		// because its setters, e.g. from() and setRouteIndexes(), are final
+		private static final VarHandle ROUTE_INDEXES;
+
+		static {
+			try {
+				ROUTE_INDEXES = MethodHandles.privateLookupIn(ImmutableInstruction.Builder.class,
+						MethodHandles.lookup()).findVarHandle(ImmutableInstruction.Builder.class,
+						"routeIndexes", Route.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+
+		/**
+		 * Sets the route of the updated component feature from the given child indexes.
+		 */
+		public Builder setRoute(Iterable<Integer> route) {
+			setRouteIndexes(concat(Route.ROOT, route));
+			return this;
+		}
+
+		/**
+		 * Appends the given child index to the route.
+		 * @deprecated Use {@link #setRoute(Iterable)} or
+		 * {@link #setRouteIndexes(Route)} with {@link Route#concat(int)} instead.
+		 */
+		@Deprecated
+		public Builder addRoute(int element) {
+			setRouteIndexes(currentRoute().concat(element));
+			return this;
+		}
+
+		/**
+		 * Appends the given child indexes to the route.
+		 * @deprecated Use {@link #setRoute(Iterable)} or
+		 * {@link #setRouteIndexes(Route)} instead.
+		 */
+		@Deprecated
+		public Builder addRoute(int... elements) {
+			Route route = currentRoute();
+			for (int element : elements) {
+				route = route.concat(element);
+			}
+			setRouteIndexes(route);
+			return this;
+		}
+
+		/**
+		 * Appends the given child indexes to the route.
+		 * @deprecated Use {@link #setRoute(Iterable)} or
+		 * {@link #setRouteIndexes(Route)} instead.
+		 */
+		@Deprecated
+		public Builder addAllRoute(Iterable<Integer> elements) {
+			setRouteIndexes(concat(currentRoute(), elements));
+			return this;
+		}
+
+		// the route set by any setter including from(), or the root if none
+		private Route currentRoute() {
+			Route route = (Route) ROUTE_INDEXES.get(this);
+			return route != null ? route : Route.ROOT;
+		}
+
+		private static Route concat(Route route, Iterable<Integer> elements) {
+			if (route.isRoot() && elements instanceof Route) {
+				return (Route) elements;
+			}
+			List<Integer> indexes = new ArrayList<>(route);
+			for (Integer element : elements) {
+				indexes.add(element);
+			}
+			return Route.of(indexes);
+		}
 	}
 }
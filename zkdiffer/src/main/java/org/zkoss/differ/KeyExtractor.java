@@ -0,0 +1,57 @@
+/* KeyExtractor.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		4:12 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import javax.annotation.Nullable;
+
+/**
+ * The key extractor to identify a child component feature among its siblings
+ * for the keyed child reconciliation.
+ * <p>The children of a component are reconciled by keys only if all of them
+ * (on both sides) have a key and the keys are unique among the siblings,
+ * otherwise, the children are diffed as usual.
+ * @author jumperchen
+ * @see DiffOptions#getKeyExtractor()
+ */
+@FunctionalInterface
+public interface KeyExtractor {
+
+	/**
+	 * Returns the key of the given component feature, if any.
+	 */
+	@Nullable
+	Object getKey(ComponentFeature feature);
+
+	/**
+	 * Returns a key extractor with the id of the component.
+	 */
+	static KeyExtractor ofId() {
+		return ComponentFeature::getId;
+	}
+
+	/**
+	 * Returns a key extractor with the given attribute of the component.
+	 * @param name the name of the attribute
+	 */
+	static KeyExtractor ofAttribute(String name) {
+		return feature -> feature.attributes().get(name);
+	}
+
+	/**
+	 * Returns a key extractor with the given property of the component, i.e. the
+	 * property generated by {@link org.zkoss.zk.ui.sys.ComponentCtrl#renderPropertiesOnly}.
+	 * @param name the name of the property
+	 */
+	static KeyExtractor ofProperty(String name) {
+		return feature -> feature.properties().get(name);
+	}
+}
@@ -0,0 +1,267 @@
+/* KeyedReconciler.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		4:25 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A keyed child reconciliation to match the children by the keys in O(n log n) time.
+ * <p>The instructions are produced in the order of removing, relocating and adding,
+ * and the children to be relocated are the ones outside the longest increasing
+ * subsequence of the target positions, i.e. the minimal moves.
+ * @author jumperchen
+ * @see KeyExtractor
+ */
+/*package*/ class KeyedReconciler {
+	private final List<ComponentFeature> _sourceChildren;
+	private final Map<Object, Integer> _sourceKeys;
+	private final Object[] _sourceKeyArray;
+	private final Map<Object, Integer> _targetKeys;
+	private final Object[] _targetKeyArray;
+
+	private KeyedReconciler(List<ComponentFeature> sourceChildren, Map<Object, Integer> sourceKeys,
+			Map<Object, Integer> targetKeys) {
+		_sourceChildren = sourceChildren;
+		_sourceKeys = sourceKeys;
+		_sourceKeyArray = toArray(sourceKeys);
+		_targetKeys = targetKeys;
+		_targetKeyArray = toArray(targetKeys);
+	}
+
+	/**
+	 * Returns the keyed reconciler of the given children, or null if any child
+	 * has no key or the keys are duplicated.
+	 */
+	@Nullable
+	/*package*/ static KeyedReconciler of(List<ComponentFeature> sourceChildren,
+			List<ComponentFeature> targetChildren, @Nullable KeyExtractor keyExtractor) {
+		if (keyExtractor == null || (sourceChildren.isEmpty() && targetChildren.isEmpty())) {
+			return null;
+		}
+		Map<Object, Integer> sourceKeys = indexKeys(sourceChildren, keyExtractor);
+		if (sourceKeys == null) {
+			return null;
+		}
+		Map<Object, Integer> targetKeys = indexKeys(targetChildren, keyExtractor);
+		if (targetKeys == null) {
+			return null;
+		}
+		return new KeyedReconciler(sourceChildren, sourceKeys, targetKeys);
+	}
+
+	private static Object[] toArray(Map<Object, Integer> keys) {
+		Object[] array = new Object[keys.size()];
+		keys.forEach((key, index) -> array[index] = key);
+		return array;
+	}
+
+	@Nullable
+	private static Map<Object, Integer> indexKeys(List<ComponentFeature> children,
+			KeyExtractor keyExtractor) {
+		Map<Object, Integer> keys = new HashMap<>(children.size() * 2);
+		for (int i = 0, j = children.size(); i < j; i++) {
+			Object key = keyExtractor.getKey(children.get(i));
+			if (key == null || keys.put(key, i) != null) {
+				return null;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the source child matched with the target child of the given index, if any.
+	 */
+	@Nullable
+	/*package*/ ComponentFeature getSource(int targetIndex) {
+		Integer index = _sourceKeys.get(_targetKeyArray[targetIndex]);
+		return index != null ? _sourceChildren.get(index) : null;
+	}
+
+	/**
+	 * Returns whether both children are already in the same order with the same keys.
+	 */
+	/*package*/ boolean isReconciled() {
+		if (_sourceKeyArray.length != _targetKeyArray.length) {
+			return false;
+		}
+		for (int i = 0; i < _targetKeyArray.length; i++) {
+			Integer index = _sourceKeys.get(_targetKeyArray[i]);
+			if (index == null || index != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the instructions to make the source children have the same keys
+	 * in the same order as the target children.
+	 * @param targetChildren the target children
+	 * @param route the route of the parent
+	 */
+	/*package*/ List<Instruction> reconcile(List<ComponentFeature> targetChildren, Route route) {
+		if (isReconciled()) {
+			return Collections.emptyList();
+		}
+		List<Instruction> diffs = new ArrayList<>();
+
+		// remove from the end, so that the indexes stay the same.
+		List<Object> current = new ArrayList<>(_sourceChildren.size());
+		for (int i = _sourceChildren.size() - 1; i >= 0; i--) {
+			Object key = _sourceKeyArray[i];
+			if (!_targetKeys.containsKey(key)) {
+				diffs.add(Instruction.newBuilder(Instruction.Action.removeElement)
+						.setRoute(route.concat(i))
+						.setElement(_sourceChildren.get(i).clone()).build());
+			} else {
+				current.add(key);
+			}
+		}
+		Collections.reverse(current);
+
+		// relocate the ones outside the longest increasing subsequence
+		int size = current.size();
+		int[] positions = new int[size];
+		for (int i = 0; i < size; i++) {
+			positions[i] = _targetKeys.get(current.get(i));
+		}
+		boolean[] stable = new boolean[_targetKeyArray.length];
+		for (int i : longestIncreasingSubsequence(positions)) {
+			stable[positions[i]] = true;
+		}
+		int[] currentIndexes = new int[_targetKeyArray.length]; // or -1 if added later
+		Arrays.fill(currentIndexes, -1);
+		for (int i = 0; i < size; i++) {
+			currentIndexes[positions[i]] = i;
+		}
+
+		// Each relocated child is inserted after the previous one of the target, i.e.
+		// after the nearest stable one before it in the target, and the ones
+		// relocated after it. So the order of the children at any moment is known
+		// in advance: a group of slots for each stable child (and one for the head),
+		// which starts with the stable child and is followed by the relocated ones
+		// in the target order, and a child not relocated yet stays in the slot of its
+		// current index. A Fenwick tree of the occupied slots counts the index of
+		// a slot in O(log n), instead of searching and shifting a list for each move.
+		int[] groupSizes = new int[size + 1]; // the group of index i + 1 is after the child i
+		for (int i = 0, anchor = -1; i < _targetKeyArray.length; i++) {
+			int index = currentIndexes[i];
+			if (index >= 0) {
+				if (stable[i]) {
+					anchor = index;
+				} else {
+					groupSizes[anchor + 1]++;
+				}
+			}
+		}
+		int[] groupStarts = new int[size + 1];
+		int slots = 0;
+		for (int group = 0; group <= size; group++) {
+			groupStarts[group] = slots;
+			slots += (group > 0 ? 1 : 0) + groupSizes[group];
+		}
+		int[] tree = new int[slots + 1];
+		for (int i = 0; i < size; i++) {
+			add(tree, groupStarts[i + 1], 1);
+		}
+		int[] filled = new int[size + 1]; // the relocated ones of each group
+		for (int i = 0, anchor = -1; i < _targetKeyArray.length; i++) {
+			int index = currentIndexes[i];
+			if (index < 0) {
+				continue; // added later
+			}
+			if (stable[i]) {
+				anchor = index;
+				continue;
+			}
+			int oldSlot = groupStarts[index + 1];
+			int from = count(tree, oldSlot);
+			add(tree, oldSlot, -1);
+			int newSlot = groupStarts[anchor + 1] + (anchor >= 0 ? 1 : 0) + filled[anchor + 1]++;
+			int to = count(tree, newSlot);
+			add(tree, newSlot, 1);
+			if (from != to) {
+				diffs.add(Instruction.newBuilder(Instruction.Action.relocateGroup)
+						.setGroupLength(1).setFrom(from).setTo(to)
+						.setRoute(route).build());
+			}
+		}
+
+		// add the new ones in order
+		for (int i = 0; i < _targetKeyArray.length; i++) {
+			if (!_sourceKeys.containsKey(_targetKeyArray[i])) {
+				diffs.add(Instruction.newBuilder(Instruction.Action.addElement)
+						.setRoute(route.concat(i))
+						.setElement(targetChildren.get(i).clone()).build());
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * Adds the delta to the given slot of the Fenwick tree.
+	 */
+	private static void add(int[] tree, int slot, int delta) {
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Returns the number of the occupied slots before the given slot of the Fenwick tree.
+	 */
+	private static int count(int[] tree, int slot) {
+		int count = 0;
+		for (int i = slot; i > 0; i -= i & -i) {
+			count += tree[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the indexes of the longest increasing subsequence in O(n log n).
+	 */
+	private static int[] longestIncreasingSubsequence(int[] values) {
+		int[] tails = new int[values.length]; // index of the smallest tail of each length
+		int[] previous = new int[values.length];
+		int length = 0;
+		for (int i = 0; i < values.length; i++) {
+			int low = 0, high = length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (values[tails[mid]] < values[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == length) {
+				length++;
+			}
+		}
+		int[] result = new int[length];
+		for (int i = length - 1, k = length > 0 ? tails[length - 1] : -1; i >= 0; i--) {
+			result[i] = k;
+			k = previous[k];
+		}
+		return result;
+	}
+}
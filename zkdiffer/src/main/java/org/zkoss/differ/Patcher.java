@@ -14,25 +14,19 @@ package org.zkoss.differ;
 import static org.zkoss.differ.Instruction.Action;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.Set;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.zkoss.lang.Classes;
-import org.zkoss.lang.reflect.Fields;
 import org.zkoss.zk.ui.Component;
-import org.zkoss.zk.ui.WebApps;
 import org.zkoss.zk.ui.event.Events;
 import org.zkoss.zk.ui.ext.DynamicPropertied;
-import org.zkoss.zk.ui.sys.ComponentCtrl;
-import org.zkoss.zk.ui.sys.PropertyAccess;
-import org.zkoss.zk.ui.sys.UiEngine;
-import org.zkoss.zk.ui.sys.WebAppCtrl;
 
 /**
  * The patcher to apply the differences into a ZK component tree.
@@ -41,48 +35,138 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 /*package*/ class Patcher {
 	private static Logger _logger = LoggerFactory.getLogger(Patcher.class);
 
-	/*package*/ static boolean patch(Component source, List<Instruction> diffs) {
-		return diffs.stream().allMatch(diff -> patchDiff(source, diff));
+	/*package*/ static boolean patch(Component source, List<Instruction> diffs, DiffOptions options) {
+		return patch(source, diffs, getFactory(options));
 	}
 
-	private static void setProperty(Component component, String propName, Object propValue) {
-		if (propName.startsWith("$$")) return; // ignore event changed.
-		PropertyAccess propertyAccess = ((ComponentCtrl) component).getPropertyAccess(
-				propName);
-		if (propertyAccess != null) {
-			propertyAccess.setValue(component, propValue);
-		} else {
-			if (propName.startsWith("_") || propName.startsWith("$")) {
-				UiEngine uiEngine = ((WebAppCtrl) WebApps.getCurrent()).getUiEngine();
-				if (uiEngine != null) {
-					uiEngine.addSmartUpdate(component, propName, propValue, true);
-				} else {
-					if (_logger.isDebugEnabled()) {
-						_logger.debug("No such method for [" + propName + "] on [" + component + "]");
-					}
+	/**
+	 * Returns the factory to create the new components of the added and replaced
+	 * elements with the given options.
+	 */
+	/*package*/ static Function<ComponentFeature, Component> getFactory(DiffOptions options) {
+		return options.isInstantiateFromSnapshot() && options.getPropertyFilter() == null
+				? ComponentFeature::instantiate : ComponentFeature::toComponent;
+	}
+
+	/**
+	 * Patches the given differences into the source component, whose new components
+	 * are created by the given factory.
+	 */
+	/*package*/ static boolean patch(Component source, List<Instruction> diffs,
+			Function<ComponentFeature, Component> factory) {
+		RouteCursor cursor = new RouteCursor(source);
+		// the consecutive outer instructions of the same route are patched as a batch
+		List<Instruction> batch = new ArrayList<>();
+		for (Instruction diff : diffs) {
+			if (!batch.isEmpty() && !(isOuter(diff.getAction())
+					&& diff.getRouteIndexes().equals(batch.get(0).getRouteIndexes()))) {
+				if (!patchBatch(cursor, batch, factory)) {
+					return false;
 				}
-				return;
+				batch.clear();
 			}
-			// try reflection
-			try {
-				Fields.set(component, propName, propValue, true);
-			} catch (NoSuchMethodException e) {
-				if (_logger.isDebugEnabled()) {
-					_logger.debug("No such method for [" + propName + "] on [" + component + "]");
-				}
-				throw new RuntimeException(e);
+			if (isOuter(diff.getAction())) {
+				batch.add(diff);
+			} else if (!patchDiff(cursor, diff, factory)) {
+				return false;
+			}
+		}
+		return batch.isEmpty() || patchBatch(cursor, batch, factory);
+	}
+
+	/**
+	 * Returns whether the action changes the component itself only, i.e. not
+	 * its children.
+	 */
+	private static boolean isOuter(Action action) {
+		return getOuterKind(action) != null;
+	}
+
+	/**
+	 * Returns the kind of the names written by the outer action, or null if not
+	 * an outer action.
+	 */
+	private static String getOuterKind(Action action) {
+		switch (action) {
+		case addAttribute:
+		case modifyAttribute:
+		case removeAttribute:
+			return "attribute";
+		case addDynamicProperty:
+		case modifyDynamicProperty:
+		case removeDynamicProperty:
+			return "dynamicProperty";
+		case addProperty:
+		case modifyProperty:
+		case removeProperty:
+			return "property";
+		case addWidgetOverride:
+		case modifyWidgetOverride:
+		case removeWidgetOverride:
+			return "widgetOverride";
+		case addClientAttribute:
+		case modifyClientAttribute:
+		case removeClientAttribute:
+		case addWidgetAttribute:
+		case modifyWidgetAttribute:
+		case removeWidgetAttribute:
+			return "clientAttribute"; // both are set as a client attribute
+		case addWidgetListener:
+		case modifyWidgetListener:
+		case removeWidgetListener:
+			return "widgetListener";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Patches the outer instructions of the same route, whose component is resolved
+	 * once, and only the last write to the same name is applied, which is applied
+	 * in the order of the last writes.
+	 */
+	private static boolean patchBatch(RouteCursor cursor, List<Instruction> batch,
+			Function<ComponentFeature, Component> factory) {
+		if (batch.size() == 1) {
+			return patchDiff(cursor, batch.get(0), factory);
+		}
+		Route route = batch.get(0).getRouteIndexes();
+		Component node = cursor.resolve(route, route.size());
+		cursor.invalidate(route.size());
+		Set<String> written = new HashSet<>();
+		boolean[] skipped = new boolean[batch.size()];
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			Instruction diff = batch.get(i);
+			skipped[i] = !written.add(getOuterKind(diff.getAction()) + ":" + diff.getName());
+		}
+		for (int i = 0, j = batch.size(); i < j; i++) {
+			if (skipped[i]) {
+				continue;
+			}
+			Component patched = patchOuter(cursor, node, batch.get(i), factory);
+			if (patched == null) {
+				return false;
+			}
+			if (patched != node) {
+				// replaced with the whole target element, which has the rest of the changes.
+				break;
 			}
 		}
+		return true;
+	}
+
+	private static void setProperty(Component component, String propName, Object propValue) {
+		if (propName.startsWith("$$")) return; // ignore event changed.
+		PropertyAccessorRegistry.get(component, propName).setValue(component, propValue);
 	}
 
 	private static Object getProperty(Component component, String propName)
 			throws InvocationTargetException, NoSuchMethodException,
 			InstantiationException, IllegalAccessException {
 		if (propName.startsWith("$$")) return null;
-		PropertyAccess propertyAccess = ((ComponentCtrl) component).getPropertyAccess(
-				propName);
-		if (propertyAccess != null) {
-			return propertyAccess.getValue(component);
+		PropertyAccessorRegistry.Accessor accessor = PropertyAccessorRegistry.get(component, propName);
+		if (accessor.hasPropertyAccess()) {
+			return accessor.getDefaultValue();
 		} else {
 			if (propName.startsWith("_")) {
 				if (_logger.isDebugEnabled()) {
@@ -96,39 +180,130 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 				}
 				return null;
 			}
-			// try reflection
-			return Fields.get(Classes.newInstance(component.getClass(), null),
-					propName);
+			return accessor.getDefaultValue();
 		}
 	}
 
-	private static boolean patchDiff(Component source, Instruction diff) {
+	private static boolean patchDiff(RouteCursor cursor, Instruction diff,
+			Function<ComponentFeature, Component> factory) {
 		Action action = diff.getAction();
-		List<Integer> route = diff.getRoute();
+		Route route = diff.getRouteIndexes();
 		Component node = null;
 		if (action != Action.addElement) {
-			node = getFromRoute(source, route);
+			node = cursor.resolve(route, route.size());
+		}
+		// the components under the changed one are resolved again for the next instruction,
+		// and so are its siblings if it's added or removed.
+		switch (action) {
+		case addElement:
+		case removeElement:
+			cursor.invalidate(route.size() - 1);
+			break;
+		default:
+			cursor.invalidate(route.size());
 		}
-		Component newNode = null;
-		Component reference = null;
-		List<Component> nodeArray;
+		switch (action) {
+		case replaceElement: {
+			Component parent = node.getParent();
+			Component newChild = factory.apply((ComponentFeature) diff.getNewValue());
+			parent.insertBefore(newChild, node);
+			node.detach();
+			// at the same index, so its siblings can still be reached from it
+			cursor.replace(route.size(), newChild);
+			break;
+		}
+		case relocateGroup:
+			relocateChildren(node, diff.getFrom(), diff.getGroupLength(), diff.getTo());
+			break;
+		case removeElement:
+			node.getParent().removeChild(node);
+			break;
+		case addElement: {
+			int c = route.last();
+			node = cursor.resolve(route, route.size() - 1);
+			if (node == null) {
+				return false;
+			}
+			List<Component> children = node.getChildren();
+			node.insertBefore(factory.apply(diff.getElement()),
+					children.size() > c ? children.get(c) : null);
+			break;
+		}
+		default:
+			return patchOuter(cursor, node, diff, factory) != null;
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the group of the children from the given index to the given index,
+	 * as if the group is removed first and then inserted at the given index.
+	 * Either the group or the children it passes over are moved, whichever is
+	 * shorter, so that the fewest children are moved.
+	 */
+	private static void relocateChildren(Component parent, int from, int length, int to) {
+		if (from < to) {
+			int passed = to - from;
+			if (length <= passed) {
+				moveChildren(parent, from, length, to + length);
+			} else {
+				moveChildren(parent, from + length, passed, from);
+			}
+		} else if (from > to) {
+			int passed = from - to;
+			if (length <= passed) {
+				moveChildren(parent, from, length, to);
+			} else {
+				moveChildren(parent, to, passed, from + length);
+			}
+		}
+	}
 
+	/**
+	 * Moves the run of the children from the given index before the child of
+	 * the given index, which is out of the run, or to the end if no such child.
+	 */
+	private static void moveChildren(Component parent, int from, int length, int before) {
+		if (length == 0) {
+			return;
+		}
+		Component[] run = new Component[length];
+		Component child = RouteCursor.getChild(parent, from, null, -1);
+		for (int i = 0; i < length; i++, child = child.getNextSibling()) {
+			run[i] = child;
+		}
+		Component reference = before < parent.getChildren().size()
+				? RouteCursor.getChild(parent, before, null, -1) : null;
+		for (Component node : run) {
+			parent.insertBefore(node, reference);
+		}
+	}
+
+	/**
+	 * Patches the outer instruction into the given component.
+	 * @return the patched component, or the new one replacing it if failed to
+	 * set the property, or null if the component is not found.
+	 */
+	private static Component patchOuter(RouteCursor cursor, Component node, Instruction diff,
+			Function<ComponentFeature, Component> factory) {
+		Route route = diff.getRouteIndexes();
+		Action action = diff.getAction();
 		switch (action) {
 		case addAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setAttribute(diff.getName(), diff.getValue());
 			break;
 		case modifyAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setAttribute(diff.getName(), diff.getNewValue());
 			break;
 		case removeAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.removeAttribute(diff.getName());
 			break;
@@ -149,7 +324,7 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 			break;
 		case addProperty:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			try {
 				setProperty(node, diff.getName(), diff.getValue());
@@ -158,15 +333,17 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 					_logger.debug("Cannot call setProperty", t);
 				}
 				// rollback with replace element
+				cursor.invalidate(route.size() - 1);
 				Component parent = node.getParent();
-				Component newChild = ((ComponentFeature) diff.getElement()).toComponent();
+				Component newChild = factory.apply((ComponentFeature) diff.getElement());
 				parent.insertBefore(newChild, node);
 				node.detach();
+				return newChild;
 			}
 			break;
 		case modifyProperty:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			try {
 				setProperty(node, diff.getName(), diff.getNewValue());
@@ -175,15 +352,17 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 					_logger.debug("Cannot call setProperty", t);
 				}
 				// rollback with replace element
+				cursor.invalidate(route.size() - 1);
 				Component parent = node.getParent();
-				Component newChild = ((ComponentFeature) diff.getElement()).toComponent();
+				Component newChild = factory.apply((ComponentFeature) diff.getElement());
 				parent.insertBefore(newChild, node);
 				node.detach();
+				return newChild;
 			}
 			break;
 		case removeProperty:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			try {
 				String propName = diff.getName();
@@ -194,136 +373,180 @@ import org.zkoss.zk.ui.sys.WebAppCtrl;
 					_logger.debug("Cannot call setProperty", t);
 				}
 				// rollback with replace element
+				cursor.invalidate(route.size() - 1);
 				Component parent = node.getParent();
-				Component newChild = ((ComponentFeature) diff.getElement()).toComponent();
+				Component newChild = factory.apply((ComponentFeature) diff.getElement());
 				parent.insertBefore(newChild, node);
 				node.detach();
+				return newChild;
 			}
 			break;
 		case addWidgetOverride:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetOverride(diff.getName(), (String) diff.getValue());
 			break;
 		case modifyWidgetOverride:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetOverride(diff.getName(), (String) diff.getNewValue());
 			break;
 		case removeWidgetOverride:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetOverride(diff.getName(), null);
 			break;
 		case addWidgetListener:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetListener(diff.getName(), (String) diff.getValue());
 			break;
 		case modifyWidgetListener:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetListener(diff.getName(), (String) diff.getNewValue());
 			break;
 		case removeWidgetListener:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setWidgetListener(diff.getName(), null);
 			break;
 		case addWidgetAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), (String) diff.getValue());
 			break;
 		case modifyWidgetAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), (String) diff.getNewValue());
 			break;
 		case removeWidgetAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), null);
 			break;
 		case addClientAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), (String) diff.getValue());
 			break;
 		case modifyClientAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), (String) diff.getNewValue());
 			break;
 		case removeClientAttribute:
 			if (node == null) {
-				return false;
+				return null;
 			}
 			node.setClientAttribute(diff.getName(), null);
 			break;
-		case replaceElement: {
-			Component parent = node.getParent();
-			Component newChild = ((ComponentFeature) diff.getNewValue()).toComponent();
-			parent.insertBefore(newChild, node);
-			node.detach();
-			break;
+		default:
+			throw new RuntimeException("unknown action [" + action + "]");
 		}
-		case relocateGroup:
-			int groupLength = diff.getGroupLength();
-			int from = diff.getFrom();
-			final Component target = node;
-			nodeArray = IntStream.range(0, groupLength).mapToObj(ignore -> {
-				Component child = target.getChildren().get(from);
-				target.removeChild(child);
-				return child;
-			}).collect(Collectors.toList());
+		return node;
+	}
 
-			for (int i = 0, j = nodeArray.size(); i < j; i++) {
-				Component childNode = nodeArray.get(i);
-				if (i == 0) {
-					reference = node.getChildren().get(diff.getTo());
-				}
-				node.insertBefore(childNode, reference);
+	/**
+	 * The cursor to resolve the routes of the instructions in order, which keeps
+	 * the components along the last resolved route. So the next route is resolved
+	 * from the deepest common ancestor, and a child is reached by stepping from its
+	 * last resolved sibling, the first or the last child, whichever is the nearest,
+	 * instead of walking the linked children from the first one at every level.
+	 */
+	private static class RouteCursor {
+		private Component[] _path; // _path[i] is the component at the depth i of _route
+		private Route _route = Route.ROOT;
+		private int _depth; // the valid depth of _path
+
+		private RouteCursor(Component root) {
+			_path = new Component[8];
+			_path[0] = root;
+		}
+
+		/**
+		 * Returns the component of the given route at the given depth.
+		 */
+		private Component resolve(Route route, int depth) {
+			int common = 0;
+			for (int max = Math.min(_depth, depth); common < max
+					&& _route.getInt(common) == route.getInt(common); common++);
+			if (_path.length <= depth) {
+				_path = Arrays.copyOf(_path, Math.max(depth + 1, _path.length << 1));
 			}
-		break;
-		case removeElement:
-			node.getParent().removeChild(node);
-			break;
-		case addElement: {
-			ArrayDeque<Integer> parentRoute = new ArrayDeque<>(route);
-            int c = parentRoute.removeLast();
-			node = getFromRoute(source, new ArrayList<>(parentRoute));
-			if (node == null) {
-				return false;
+			Component node = _path[common];
+			for (int i = common; i < depth; i++) {
+				// the last resolved child of the common ancestor is a sibling
+				Component sibling = i == common && i < _depth ? _path[i + 1] : null;
+				node = getChild(node, route.getInt(i), sibling, sibling != null ? _route.getInt(i) : -1);
+				_path[i + 1] = node;
 			}
-			List<Component> children = node.getChildren();
-			node.insertBefore(diff.getElement().toComponent(),
-					children.size() > c ? children.get(c) : null);
-			break;
+			_route = route;
+			_depth = depth;
+			return node;
 		}
-		default:
-			throw new RuntimeException("unknown action [" + action + "]");
+
+		/**
+		 * Invalidates the components deeper than the given depth, whose siblings
+		 * may be changed.
+		 */
+		private void invalidate(int depth) {
+			if (_depth > depth) {
+				_depth = Math.max(depth, 0);
+			}
 		}
-		return true;
-	}
 
-	private static Component getFromRoute(Component node, List<Integer> route) {
-		ArrayDeque<Integer> arrayDeque = new ArrayDeque<>(route);
-		while (!arrayDeque.isEmpty()) {
-			int c = arrayDeque.pop();
-			node = node.getChildren().get(c);
+		/**
+		 * Replaces the component at the given depth of the last route, which is
+		 * replaced by the given one at the same index. (Excluding the root)
+		 */
+		private void replace(int depth, Component node) {
+			if (depth > 0 && _depth >= depth) {
+				_path[depth] = node;
+			}
+		}
+
+		private static Component getChild(Component parent, int index,
+				Component sibling, int siblingIndex) {
+			int size = parent.getChildren().size();
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			int fromLast = size - 1 - index;
+			if (sibling != null && Math.abs(index - siblingIndex) <= Math.min(index, fromLast)) {
+				Component child = sibling;
+				for (int i = siblingIndex; i < index; i++) {
+					child = child.getNextSibling();
+				}
+				for (int i = siblingIndex; i > index; i--) {
+					child = child.getPreviousSibling();
+				}
+				return child;
+			}
+			if (index <= fromLast) {
+				Component child = parent.getFirstChild();
+				for (int i = 0; i < index; i++) {
+					child = child.getNextSibling();
+				}
+				return child;
+			}
+			Component child = parent.getLastChild();
+			for (int i = 0; i < fromLast; i++) {
+				child = child.getPreviousSibling();
+			}
+			return child;
 		}
-		return node;
 	}
 }
@@ -0,0 +1,115 @@
+/* PreparedPatch.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		1:35 AM 2026/10/19, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.zkoss.zk.ui.Component;
+
+/**
+ * The differences prepared to be patched, whose new components of the added and
+ * replaced elements are built in advance, so that patching them only attaches
+ * the pre-built components into the source component.
+ * <p>It's prepared outside of the ZK execution, e.g. before locking the desktop,
+ * and then applied inside the execution once it's completed. For example,
+ * <pre><code>
+ * Differ.prepare(diffs, options, executor).thenAccept(patch -&gt; {
+ *     // inside the ZK execution, e.g. by Executions.schedule()
+ *     patch.apply(source);
+ * });
+ * </code></pre>
+ * <p>Note: a pre-built component is attached once, if the patch is applied again,
+ * the new components are built at that moment as {@link Differ#patch(Component, List, DiffOptions)}.
+ * @author jumperchen
+ * @see Differ#prepare(List, DiffOptions, Executor)
+ */
+public class PreparedPatch {
+	private final List<Instruction> _diffs;
+	private final Function<ComponentFeature, Component> _factory;
+	// the pre-built components of the elements, which are removed once attached
+	private final Map<ComponentFeature, Component> _components;
+
+	private PreparedPatch(List<Instruction> diffs, Function<ComponentFeature, Component> factory,
+			Map<ComponentFeature, Component> components) {
+		_diffs = diffs;
+		_factory = factory;
+		_components = components;
+	}
+
+	/**
+	 * Builds the new components of the given differences with the given executor.
+	 * <p>If the component features are built without {@link DiffOptions#isCloneSnapshot()},
+	 * they're built on the caller's thread instead, because their owners are the
+	 * live components, which are unsafe to read on the other threads.
+	 */
+	/*package*/ static CompletableFuture<PreparedPatch> prepare(List<Instruction> diffs,
+			DiffOptions options, Executor executor) {
+		Function<ComponentFeature, Component> factory = Patcher.getFactory(options);
+		List<ComponentFeature> elements = new ArrayList<>();
+		for (Instruction diff : diffs) {
+			switch (diff.getAction()) {
+			case addElement:
+				elements.add(diff.getElement());
+				break;
+			case replaceElement:
+				elements.add((ComponentFeature) diff.getNewValue());
+				break;
+			case addProperty:
+			case modifyProperty:
+			case removeProperty:
+				// resolve how to set the property of the component class in advance
+				if (diff.getElement() != null && !diff.getName().startsWith("$$")) {
+					PropertyAccessorRegistry.get(diff.getElement().owner(), diff.getName());
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		Executor builder = options.isCloneSnapshot() ? executor : Runnable::run;
+		List<CompletableFuture<Component>> futures = new ArrayList<>(elements.size());
+		for (ComponentFeature element : elements) {
+			futures.add(CompletableFuture.supplyAsync(() -> factory.apply(element), builder));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+			Map<ComponentFeature, Component> components = new IdentityHashMap<>(elements.size());
+			for (int i = 0, j = elements.size(); i < j; i++) {
+				components.put(elements.get(i), futures.get(i).join());
+			}
+			return new PreparedPatch(diffs, factory, components);
+		});
+	}
+
+	/**
+	 * Returns the differences to patch.
+	 */
+	public List<Instruction> getInstructions() {
+		return _diffs;
+	}
+
+	/**
+	 * Patches the prepared differences into the source component.
+	 * @return true if succeed.
+	 */
+	public boolean apply(Component source) {
+		return Patcher.patch(source, _diffs, element -> {
+			Component component = _components.remove(element);
+			return component != null ? component : _factory.apply(element);
+		});
+	}
+}
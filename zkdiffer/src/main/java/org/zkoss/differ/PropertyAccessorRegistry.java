@@ -0,0 +1,222 @@
+/* PropertyAccessorRegistry.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		12:40 AM 2026/10/19, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.zkoss.lang.Classes;
+import org.zkoss.lang.reflect.Fields;
+import org.zkoss.zk.ui.Component;
+import org.zkoss.zk.ui.UiException;
+import org.zkoss.zk.ui.WebApps;
+import org.zkoss.zk.ui.sys.ComponentCtrl;
+import org.zkoss.zk.ui.sys.PropertyAccess;
+import org.zkoss.zk.ui.sys.UiEngine;
+import org.zkoss.zk.ui.sys.WebAppCtrl;
+
+/**
+ * The registry of the property accessors of the component classes for {@link Patcher},
+ * which resolves how to set a property of a component class once, i.e. by the
+ * {@link PropertyAccess} of ZK, a smart update, or the setter as a {@link MethodHandle},
+ * so that setting a property needs no lookup nor reflection after the first time.
+ * <p>The accessors are resolved lazily, or in advance by {@link #warmUp(Class)}.
+ * @author jumperchen
+ */
+/*package*/ class PropertyAccessorRegistry {
+	private static final Logger _logger = LoggerFactory.getLogger(PropertyAccessorRegistry.class);
+
+	private static final ClassValue<Map<String, Accessor>> ACCESSORS = new ClassValue<Map<String, Accessor>>() {
+		protected Map<String, Accessor> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final Object NULL_VALUE = new Object();
+
+	/**
+	 * Returns the accessor of the given property of the component class.
+	 */
+	/*package*/ static Accessor get(Component component, String propName) {
+		Map<String, Accessor> accessors = ACCESSORS.get(component.getClass());
+		Accessor accessor = accessors.get(propName);
+		if (accessor == null) {
+			accessor = new Accessor(component, propName);
+			Accessor old = accessors.putIfAbsent(propName, accessor);
+			if (old != null) {
+				accessor = old;
+			}
+		}
+		return accessor;
+	}
+
+	/**
+	 * Returns the names of the properties whose accessors of the given component
+	 * class are resolved, which is a read-only live view.
+	 */
+	/*package*/ static Set<String> getResolvedProperties(Class<? extends Component> cls) {
+		return Collections.unmodifiableSet(ACCESSORS.get(cls).keySet());
+	}
+
+	/**
+	 * Resolves the accessors of all the setters of the given component class in advance.
+	 */
+	/*package*/ static void warmUp(Class<? extends Component> cls) {
+		Component component;
+		try {
+			component = (Component) Classes.newInstance(cls, null);
+		} catch (Exception e) {
+			throw new RuntimeException("Cannot instantiate [" + cls + "]", e);
+		}
+		for (Method method : cls.getMethods()) {
+			String name = method.getName();
+			if (name.length() > 3 && name.startsWith("set") && method.getParameterCount() == 1
+					&& !Modifier.isStatic(method.getModifiers())) {
+				get(component, Character.toLowerCase(name.charAt(3)) + name.substring(4));
+			}
+		}
+	}
+
+	/**
+	 * The accessor of a property of a component class.
+	 */
+	/*package*/ static class Accessor {
+		private final Class<?> _class;
+		private final String _name;
+		private final PropertyAccess<Object> _propertyAccess;
+		private final boolean _smartUpdate;
+		// the public setters, or empty to set by Fields#set()
+		private final MethodHandle[] _setters;
+		private final Class<?>[] _types; // the parameter types of the setters
+		private final Class<?>[] _boxedTypes;
+		private volatile Object _defaultValue; // or null if not resolved yet
+
+		@SuppressWarnings("unchecked")
+		private Accessor(Component component, String name) {
+			_class = component.getClass();
+			_name = name;
+			_propertyAccess = ((ComponentCtrl) component).getPropertyAccess(name);
+			_smartUpdate = _propertyAccess == null && (name.startsWith("_") || name.startsWith("$"));
+			List<MethodHandle> setters = new ArrayList<>(1);
+			List<Class<?>> types = new ArrayList<>(1);
+			List<Class<?>> boxedTypes = new ArrayList<>(1);
+			if (_propertyAccess == null && !_smartUpdate && !name.isEmpty() && name.indexOf('.') < 0) {
+				String setterName = Classes.toMethodName(name, "set");
+				MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+				for (Method method : _class.getMethods()) {
+					if (method.getParameterCount() == 1 && setterName.equals(method.getName())
+							&& !Modifier.isStatic(method.getModifiers())) {
+						try {
+							setters.add(lookup.unreflect(method).asType(SETTER_TYPE));
+							Class<?> type = method.getParameterTypes()[0];
+							types.add(type);
+							boxedTypes.add(MethodType.methodType(type).wrap().returnType());
+						} catch (IllegalAccessException e) {
+							// not accessible, e.g. declared in a non-public class
+						}
+					}
+				}
+			}
+			_setters = setters.toArray(new MethodHandle[0]);
+			_types = types.toArray(new Class<?>[0]);
+			_boxedTypes = boxedTypes.toArray(new Class<?>[0]);
+		}
+
+		/**
+		 * Returns whether the property is accessed by the {@link PropertyAccess} of ZK.
+		 */
+		/*package*/ boolean hasPropertyAccess() {
+			return _propertyAccess != null;
+		}
+
+		/**
+		 * Sets the value of the property into the given component.
+		 * @throws UiException if no setter or field is found for it, or the setter
+		 * cannot be invoked reflectively.
+		 */
+		/*package*/ void setValue(Component component, Object value) {
+			if (_propertyAccess != null) {
+				_propertyAccess.setValue(component, value);
+			} else if (_smartUpdate) {
+				UiEngine uiEngine = ((WebAppCtrl) WebApps.getCurrent()).getUiEngine();
+				if (uiEngine != null) {
+					uiEngine.addSmartUpdate(component, _name, value, true);
+				} else if (_logger.isDebugEnabled()) {
+					_logger.debug("No such method for [" + _name + "] on [" + component + "]");
+				}
+			} else if (_setters.length > 0) {
+				invokeSetter(component, value);
+			} else {
+				// try reflection
+				try {
+					Fields.set(component, _name, value, true);
+				} catch (NoSuchMethodException e) {
+					if (_logger.isDebugEnabled()) {
+						_logger.debug("No such method for [" + _name + "] on [" + component + "]");
+					}
+					throw new UiException(e);
+				}
+			}
+		}
+
+		private void invokeSetter(Component component, Object value) {
+			// the setter of the same type first, otherwise coerce it for the first one
+			int index = 0;
+			Object arg = value;
+			while (!(value != null ? _boxedTypes[index].isInstance(value) : !_types[index].isPrimitive())) {
+				if (++index == _types.length) {
+					index = 0;
+					arg = Classes.coerce(_types[0], value);
+					break;
+				}
+			}
+			try {
+				_setters[index].invokeExact((Object) component, arg);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new UiException(t);
+			}
+		}
+
+		/**
+		 * Returns the default value of the property, which is read from a new
+		 * instance of the component class once.
+		 */
+		/*package*/ Object getDefaultValue() throws InvocationTargetException,
+				NoSuchMethodException, InstantiationException, IllegalAccessException {
+			Object value = _defaultValue;
+			if (value == null) {
+				Component instance = (Component) Classes.newInstance(_class, null);
+				// try reflection if no property access
+				value = _propertyAccess != null ? _propertyAccess.getValue(instance)
+						: Fields.get(instance, _name);
+				_defaultValue = value != null ? value : NULL_VALUE;
+				return value;
+			}
+			return value != NULL_VALUE ? value : null;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/* PropertyFilter.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		11:55 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The filter to decide which properties, attributes, dynamic properties and client
+ * attributes of a component are captured into its component feature.
+ * <p>The rejected ones are dropped while building the component feature, so they
+ * are never stored, compared nor patched.
+ * @author jumperchen
+ * @see DiffOptions#getPropertyFilter()
+ */
+@FunctionalInterface
+public interface PropertyFilter {
+
+	/**
+	 * Returns whether to capture the given entry of a component.
+	 * @param widgetName the widget name of the component, see {@link ComponentFeature#getWidgetName()}
+	 * @param type the type of the entry
+	 * @param name the name of the entry
+	 */
+	boolean accept(String widgetName, Type type, String name);
+
+	/**
+	 * Returns a filter which accepts the entries accepted by both this and the other filter.
+	 */
+	default PropertyFilter and(PropertyFilter other) {
+		return (widgetName, type, name) -> accept(widgetName, type, name)
+				&& other.accept(widgetName, type, name);
+	}
+
+	/**
+	 * Returns a filter to exclude the given entries of all components.
+	 * @param type the type of the entries
+	 * @param names the names of the entries
+	 */
+	static PropertyFilter exclude(Type type, String... names) {
+		Set<String> excluded = new HashSet<>(Arrays.asList(names));
+		return (widgetName, t, name) -> t != type || !excluded.contains(name);
+	}
+
+	/**
+	 * Returns a filter to exclude the given entries of the given widget.
+	 * @param widget the widget name of the components
+	 * @param type the type of the entries
+	 * @param names the names of the entries
+	 */
+	static PropertyFilter exclude(String widget, Type type, String... names) {
+		Set<String> excluded = new HashSet<>(Arrays.asList(names));
+		return (widgetName, t, name) -> t != type || !widget.equals(widgetName)
+				|| !excluded.contains(name);
+	}
+
+	/**
+	 * Returns a filter to include the given entries only of the given widget, the
+	 * entries of the other types and the other widgets are all accepted.
+	 * @param widget the widget name of the components
+	 * @param type the type of the entries
+	 * @param names the names of the entries
+	 */
+	static PropertyFilter include(String widget, Type type, String... names) {
+		Set<String> included = new HashSet<>(Arrays.asList(names));
+		return (widgetName, t, name) -> t != type || !widget.equals(widgetName)
+				|| included.contains(name);
+	}
+
+	/**
+	 * Returns a filter to exclude the entries starting with the given prefix of
+	 * all components, e.g. <code>excludePrefix(Type.PROPERTY, "$$")</code> for
+	 * the event flags.
+	 * @param type the type of the entries
+	 * @param prefix the prefix of the names
+	 */
+	static PropertyFilter excludePrefix(Type type, String prefix) {
+		return (widgetName, t, name) -> t != type || !name.startsWith(prefix);
+	}
+
+	/**
+	 * The type of the entries of a component.
+	 */
+	enum Type {
+		/**
+		 * The properties rendered by {@link org.zkoss.zk.ui.sys.ComponentCtrl#renderPropertiesOnly}.
+		 */
+		PROPERTY,
+
+		/**
+		 * The component attributes, see {@link org.zkoss.zk.ui.Component#getAttributes()}.
+		 */
+		ATTRIBUTE,
+
+		/**
+		 * The dynamic properties, see {@link org.zkoss.zk.ui.ext.DynamicPropertied}.
+		 */
+		DYNAMIC_PROPERTY,
+
+		/**
+		 * The client attributes, see {@link org.zkoss.zk.ui.Component#setClientAttribute(String, String)}.
+		 */
+		CLIENT_ATTRIBUTE
+	}
+}
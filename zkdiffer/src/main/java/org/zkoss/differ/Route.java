@@ -0,0 +1,142 @@
+/* Route.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		8:30 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable route of a component feature from the root, i.e. the child indexes
+ * of each level, which is backed by an int array.
+ * <p>It's a read-only {@code List<Integer>} view as well for compatibility.
+ * @author jumperchen
+ * @see Instruction#getRouteIndexes()
+ */
+public final class Route extends AbstractList<Integer> implements RandomAccess, Serializable {
+	private static final long serialVersionUID = 20261018L;
+
+	/**
+	 * The route of the root.
+	 */
+	public static final Route ROOT = new Route(new int[0]);
+
+	private final int[] _indexes;
+
+	private Route(int[] indexes) {
+		_indexes = indexes;
+	}
+
+	/**
+	 * Returns the route of the given child indexes.
+	 */
+	public static Route of(int... indexes) {
+		return indexes.length == 0 ? ROOT : new Route(indexes.clone());
+	}
+
+	/**
+	 * Returns the route of the given child indexes.
+	 */
+	public static Route of(List<Integer> indexes) {
+		if (indexes instanceof Route) {
+			return (Route) indexes;
+		}
+		int size = indexes.size();
+		if (size == 0) {
+			return ROOT;
+		}
+		int[] array = new int[size];
+		for (int i = 0; i < size; i++) {
+			array[i] = indexes.get(i);
+		}
+		return new Route(array);
+	}
+
+	/**
+	 * Returns a new route of the child with the given index.
+	 */
+	public Route concat(int index) {
+		int[] indexes = Arrays.copyOf(_indexes, _indexes.length + 1);
+		indexes[_indexes.length] = index;
+		return new Route(indexes);
+	}
+
+	/**
+	 * Returns the route of the parent.
+	 * @throws IllegalStateException if it's the root.
+	 */
+	public Route parent() {
+		if (_indexes.length == 0) {
+			throw new IllegalStateException("No parent of the root");
+		}
+		return _indexes.length == 1 ? ROOT : new Route(Arrays.copyOf(_indexes, _indexes.length - 1));
+	}
+
+	/**
+	 * Returns the last child index.
+	 * @throws IllegalStateException if it's the root.
+	 */
+	public int last() {
+		if (_indexes.length == 0) {
+			throw new IllegalStateException("No index of the root");
+		}
+		return _indexes[_indexes.length - 1];
+	}
+
+	/**
+	 * Returns a new route whose first index is shifted by the given offset.
+	 */
+	public Route shiftFirst(int offset) {
+		if (offset == 0 || _indexes.length == 0) {
+			return this;
+		}
+		int[] indexes = _indexes.clone();
+		indexes[0] += offset;
+		return new Route(indexes);
+	}
+
+	/**
+	 * Returns the child index of the given level without boxing.
+	 */
+	public int getInt(int level) {
+		return _indexes[level];
+	}
+
+	/**
+	 * Returns whether it's the route of the root.
+	 */
+	public boolean isRoot() {
+		return _indexes.length == 0;
+	}
+
+	public Integer get(int index) {
+		return _indexes[index];
+	}
+
+	public int size() {
+		return _indexes.length;
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof Route) {
+			return Arrays.equals(_indexes, ((Route) o)._indexes);
+		}
+		return super.equals(o);
+	}
+
+	public int hashCode() {
+		// the same as List#hashCode()
+		return Arrays.hashCode(_indexes);
+	}
+}
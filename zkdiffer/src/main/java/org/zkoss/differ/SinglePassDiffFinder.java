@@ -0,0 +1,312 @@
+/* SinglePassDiffFinder.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		2:16 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+import org.zkoss.lang.Objects;
+
+/**
+ * A diff finder to produce all the differences in one top-down pass, unlike
+ * {@link DiffFinder} it doesn't patch the source component feature virtually,
+ * so both component features stay untouched.
+ * <p>The children are aligned by the longest common subsequence of the roughly
+ * equal children, and the unaligned children in between are diffed pair by pair.
+ * @author jumperchen
+ * @see DiffOptions.Engine#SINGLE_PASS
+ */
+/*package*/ class SinglePassDiffFinder {
+	private final DiffOptions _options;
+	private final DiffContext _context;
+
+	/*package*/ SinglePassDiffFinder(DiffOptions options, DiffContext context) {
+		_options = options;
+		_context = context;
+	}
+
+	/**
+	 * Finds the differences and passes each instruction to the given consumer
+	 * in the order of applying.
+	 */
+	/*package*/ void find(ComponentFeature source, ComponentFeature target, Consumer<Instruction> diffs) {
+		if (_options.isSkipRoot()) {
+			findInnerDiff(diffs, source, target, Route.ROOT);
+		} else {
+			findNextDiff(diffs, source, target, Route.ROOT);
+		}
+	}
+
+	private void findNextDiff(Consumer<Instruction> diffs, ComponentFeature source,
+			ComponentFeature target, Route route) {
+		if (!Objects.equals(source.getWidgetName(), target.getWidgetName())) {
+			if (route.isRoot()) {
+				throw new RuntimeException(
+						"Top level nodes have to be of the same kind.");
+			}
+			diffs.accept(DiffFinder.newReplaceElement(source, target, route));
+			return;
+		}
+		if (!route.isRoot() && _options.getMaxChildCount() < Math.abs(
+				source.childCount() - target.childCount())
+				&& KeyedReconciler.of(source.children(), target.children(),
+						_options.getKeyExtractor()) == null) {
+			diffs.accept(DiffFinder.newReplaceElement(source, target, route));
+			return;
+		}
+		if (DiffFinder.isSameTree(source, target)) {
+			return;
+		}
+		if (!_context.visitNode()) {
+			// replace the subtree as a whole once the budget runs out, or its children if it's the root.
+			if (!route.isRoot()) {
+				diffs.accept(DiffFinder.newReplaceElement(source, target, route));
+			} else {
+				DiffFinder.diffFeatures(diffs, route, source, target);
+				DiffFinder.replaceChildren(diffs, source.children(), target.children(), route);
+			}
+			return;
+		}
+		DiffFinder.diffFeatures(diffs, route, source, target);
+		findInnerDiff(diffs, source, target, route);
+	}
+
+	private void findInnerDiff(Consumer<Instruction> diffs, ComponentFeature source,
+			ComponentFeature target, Route route) {
+		List<ComponentFeature> sourceChildren = source.children();
+		List<ComponentFeature> targetChildren = target.children();
+		int last = Math.max(sourceChildren.size(), targetChildren.size());
+		if (last == 0) {
+			return;
+		}
+		if (_options.getForkJoinPool() != null && !(diffs instanceof ParallelDiffs)) {
+			ParallelDiffs parallelDiffs = new ParallelDiffs();
+			findInnerDiff(parallelDiffs, source, target, route);
+			parallelDiffs.joinTo(diffs);
+			return;
+		}
+		KeyedReconciler keyedReconciler = KeyedReconciler.of(sourceChildren,
+				targetChildren, _options.getKeyExtractor());
+		if (keyedReconciler != null) {
+			keyedReconciler.reconcile(targetChildren, route).forEach(diffs);
+			// the same keys in the same order now, diffs the matched ones pair by pair.
+			for (int i = 0, j = targetChildren.size(); i < j; i++) {
+				ComponentFeature e1 = keyedReconciler.getSource(i);
+				if (e1 != null) {
+					findChildDiff(diffs, e1, targetChildren.get(i), route.concat(i));
+				}
+			}
+			return;
+		}
+		if (_options.getMaxChildCount() <= 0
+				|| last < _options.getMaxChildCount()) {
+			if (!_context.computeCells((long) sourceChildren.size() * targetChildren.size())) {
+				DiffFinder.replaceChildren(diffs, sourceChildren, targetChildren, route);
+				return;
+			}
+			findAlignedDiff(diffs, sourceChildren, targetChildren, route);
+		} else {
+			findPositionalDiff(diffs, sourceChildren, targetChildren, route);
+		}
+	}
+
+	private void findAlignedDiff(Consumer<Instruction> diffs, List<ComponentFeature> sourceChildren,
+			List<ComponentFeature> targetChildren, Route route) {
+		int sourceSize = sourceChildren.size();
+		int targetSize = targetChildren.size();
+		int[] aligned = alignChildren(sourceChildren, targetChildren);
+
+		// index is the position of the source children after applying the diffs so far.
+		int index = 0;
+		int c1Index = 0, c2Index = 0;
+		for (int k = 0; k <= sourceSize; k++) {
+			int c2Aligned = k < sourceSize ? aligned[k] : targetSize;
+			if (k < sourceSize && c2Aligned < 0) {
+				continue; // unaligned, handled with the gap below
+			}
+			// diff the gap pair by pair, then remove or add the rest.
+			while (c1Index < k && c2Index < c2Aligned) {
+				findChildDiff(diffs, sourceChildren.get(c1Index++),
+						targetChildren.get(c2Index++), route.concat(index++));
+			}
+			while (c1Index < k) {
+				diffs.accept(Instruction.newBuilder(Instruction.Action.removeElement)
+						.setRoute(route.concat(index))
+						.setElement(sourceChildren.get(c1Index++).clone()).build());
+			}
+			while (c2Index < c2Aligned) {
+				diffs.accept(Instruction.newBuilder(Instruction.Action.addElement)
+						.setRoute(route.concat(index++))
+						.setElement(targetChildren.get(c2Index++).clone()).build());
+			}
+			if (k < sourceSize) {
+				findChildDiff(diffs, sourceChildren.get(c1Index++),
+						targetChildren.get(c2Index++), route.concat(index++));
+			}
+		}
+	}
+
+	/**
+	 * Diffs the paired children in another task if they're large enough and
+	 * the fork/join pool is given.
+	 */
+	private void findChildDiff(Consumer<Instruction> diffs, ComponentFeature source,
+			ComponentFeature target, Route route) {
+		if (diffs instanceof ParallelDiffs
+				&& source.subtreeSize() + target.subtreeSize() >= _options.getParallelThreshold()
+				&& !DiffFinder.isSameTree(source, target)) {
+			SinglePassDiffFinder finder = new SinglePassDiffFinder(_options, _context.fork());
+			ForkJoinTask<List<Instruction>> task = ForkJoinTask.adapt(() -> {
+				ParallelDiffs parallelDiffs = new ParallelDiffs();
+				finder.findNextDiff(parallelDiffs, source, target, route);
+				List<Instruction> result = new ArrayList<>();
+				parallelDiffs.joinTo(result::add);
+				return result;
+			});
+			ForkJoinPool pool = _options.getForkJoinPool();
+			if (ForkJoinTask.getPool() == pool) {
+				task.fork();
+			} else {
+				pool.execute(task);
+			}
+			((ParallelDiffs) diffs).add(task);
+		} else {
+			findNextDiff(diffs, source, target, route);
+		}
+	}
+
+	/**
+	 * The instructions and the forked tasks in the order of applying, which are
+	 * passed to the consumer by {@link #joinTo(Consumer)}.
+	 */
+	private static class ParallelDiffs implements Consumer<Instruction> {
+		private final List<Object> _segments = new ArrayList<>();
+
+		public void accept(Instruction instruction) {
+			_segments.add(instruction);
+		}
+
+		private void add(ForkJoinTask<List<Instruction>> task) {
+			_segments.add(task);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void joinTo(Consumer<Instruction> diffs) {
+			for (Object segment : _segments) {
+				if (segment instanceof Instruction) {
+					diffs.accept((Instruction) segment);
+				} else {
+					((ForkJoinTask<List<Instruction>>) segment).join().forEach(diffs);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the aligned index of the target children for each source child,
+	 * or -1 if not aligned.
+	 */
+	private int[] alignChildren(List<ComponentFeature> sourceChildren,
+			List<ComponentFeature> targetChildren) {
+		int sourceSize = sourceChildren.size();
+		int targetSize = targetChildren.size();
+		DescriptorTable table = _context.getDescriptorTable();
+		BitSet uniqueFeatures = table.uniqueInBoth(sourceChildren, targetChildren);
+		boolean subsetsSame = DiffFinder.isSubsetsSame(table, sourceChildren, targetChildren);
+
+		// the longest common subsequence, filled backwards for the forward traversal.
+		// (a flat table of (sourceSize + 1) rows and (targetSize + 1) columns)
+		int rowSize = targetSize + 1;
+		int[] lcs = _context.getTable((sourceSize + 1) * rowSize);
+		for (int c1Index = sourceSize - 1; c1Index >= 0; c1Index--) {
+			ComponentFeature c1 = sourceChildren.get(c1Index);
+			int row = c1Index * rowSize;
+			for (int c2Index = targetSize - 1; c2Index >= 0; c2Index--) {
+				if (DiffFinder.roughlyEqual(c1, targetChildren.get(c2Index),
+						table, uniqueFeatures, subsetsSame, true)) {
+					lcs[row + c2Index] = lcs[row + rowSize + c2Index + 1] + 1;
+				} else {
+					lcs[row + c2Index] = Math.max(lcs[row + rowSize + c2Index],
+							lcs[row + c2Index + 1]);
+				}
+			}
+		}
+		int[] aligned = new int[sourceSize];
+		for (int c1Index = 0, c2Index = 0; c1Index < sourceSize;) {
+			int cell = c1Index * rowSize + c2Index;
+			if (c2Index < targetSize && lcs[cell] > lcs[cell + rowSize]
+					&& lcs[cell] > lcs[cell + 1]) {
+				aligned[c1Index++] = c2Index++;
+			} else if (c2Index < targetSize && lcs[cell + 1] >= lcs[cell + rowSize]) {
+				c2Index++;
+			} else {
+				aligned[c1Index++] = -1;
+			}
+		}
+		return aligned;
+	}
+
+	/**
+	 * A simplified form of diffing for the children exceeding the max child count,
+	 * the same as {@link DiffFinder} does.
+	 */
+	private void findPositionalDiff(Consumer<Instruction> diffs, List<ComponentFeature> sourceChildren0,
+			List<ComponentFeature> targetChildren, Route route) {
+		List<ComponentFeature> sourceChildren = new ArrayList<>(sourceChildren0);
+		int last = Math.max(sourceChildren.size(), targetChildren.size());
+		int childrenLengthDifference = Math.abs(
+				sourceChildren.size() - targetChildren.size());
+		int index = 0;
+		for (int i = 0; i < last; i += 1) {
+			ComponentFeature e1 =
+					sourceChildren.size() > i ? sourceChildren.get(i) : null;
+			ComponentFeature e2 =
+					targetChildren.size() > i ? targetChildren.get(i) : null;
+
+			if (childrenLengthDifference > 0) {
+				if (e1 != null && e2 == null) {
+					diffs.accept(Instruction.newBuilder(Instruction.Action.removeElement)
+							.setRoute(route.concat(index)).setElement(e1.clone()).build());
+					index -= 1;
+				} else if (e2 != null && e1 == null) {
+					diffs.accept(Instruction.newBuilder(Instruction.Action.addElement)
+							.setRoute(route.concat(index)).setElement(e2.clone()).build());
+				}
+			}
+			if (e1 != null && e2 != null && !DiffFinder.isSameTree(e1, e2)) {
+				if (sourceChildren.size() > targetChildren.size()) {
+					diffs.accept(Instruction.newBuilder(Instruction.Action.removeElement)
+							.setElement(e1.clone())
+							.setRoute(route.concat(index)).build());
+					sourceChildren.remove(i);
+					i -= 1;
+					index -= 1;
+					childrenLengthDifference -= 1;
+				} else if (sourceChildren.size() < targetChildren.size()) {
+					ComponentFeature cloneChild = e2.clone();
+					diffs.accept(Instruction.newBuilder(Instruction.Action.addElement)
+							.setElement(cloneChild)
+							.setRoute(route.concat(index)).build());
+					sourceChildren.add(i, cloneChild);
+					childrenLengthDifference -= 1;
+				} else {
+					diffs.accept(DiffFinder.newReplaceElement(e1, e2, route.concat(index)));
+				}
+			}
+			index += 1;
+		}
+	}
+}
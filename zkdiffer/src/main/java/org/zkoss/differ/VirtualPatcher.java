@@ -11,9 +11,7 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 */
 package org.zkoss.differ;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -38,17 +36,21 @@ import java.util.stream.Collectors;
 			this.nodeIndex = nodeIndex;
 		}
 	}
-	private static RouteInfo getFromVirtualRoute(ComponentFeature tree, List<Integer> route) {
+	private static RouteInfo getFromVirtualRoute(ComponentFeature tree, Route route, int depth) {
 		ComponentFeature node = tree;
 		ComponentFeature parentNode = null;
 		int nodeIndex = 0;
 
-		ArrayDeque<Integer> route0 = new ArrayDeque<>(route);
-		while (route0.size() > 0) {
-			nodeIndex = route0.pop();
+		// all the nodes along the route are going to be changed.
+		tree.invalidateHash();
+		for (int i = 0; i < depth; i++) {
+			nodeIndex = route.getInt(i);
 			parentNode = node;
-			List<ComponentFeature> children = node.getChildren();
+			List<ComponentFeature> children = node.writableChildren();
 			node = children.size() > nodeIndex ? children.get(nodeIndex) : null;
+			if (node != null) {
+				node.invalidateHash();
+			}
 		}
 		return new RouteInfo(
 				node,
@@ -61,7 +63,8 @@ import java.util.stream.Collectors;
 		Instruction.Action action = diff.getAction();
 		if (action != Instruction.Action.addElement) {
 			// For adding nodes, we calculate the route later on. It's different because it includes the position of the newly added item.
-        RouteInfo routeInfo = getFromVirtualRoute(source, diff.getRoute());
+			Route route = diff.getRouteIndexes();
+			RouteInfo routeInfo = getFromVirtualRoute(source, route, route.size());
 			node = routeInfo.node;
 			parentNode = routeInfo.parentNode;
 			nodeIndexArray[0] = routeInfo.nodeIndex;
@@ -69,8 +72,6 @@ import java.util.stream.Collectors;
 		List<DiffFinder.SubtreeInfo> newSubsets = new ArrayList<>();
 
 		ComponentFeature newNode;
-		List<ComponentFeature> nodeArray;
-		List<Integer> route;
 
 		switch (diff.getAction()) {
 		case addAttribute:
@@ -147,17 +148,8 @@ import java.util.stream.Collectors;
 			int from = diff.getFrom();
 			int groupLength = diff.getGroupLength();
 			assert node != null;
-			List<ComponentFeature> nodeChildren = node.getChildren();
-			List<ComponentFeature> fromNodes = new ArrayList<>();
-			for (int i = from; i < from + groupLength; i++) {
-				fromNodes.add(nodeChildren.remove(from));
-			}
-			nodeArray = new ArrayList<>(fromNodes);
-			Collections.reverse(nodeArray);
 			int to = diff.getTo();
-			for (ComponentFeature movedNode : nodeArray) {
-				node.addChild(to, movedNode);
-			}
+			node.relocateChildren(from, groupLength, to);
 			List<DiffFinder.SubtreeInfo> subsets = subtreeInfos.get(
 					node.getUuid());
 			if (subsets != null) {
@@ -224,12 +216,12 @@ import java.util.stream.Collectors;
 			node = parentNode;
 			break;
 		case addElement: {
-			route = new ArrayList<>(diff.getRoute());
-			int c = route.remove(route.size() - 1);
-			node = getFromVirtualRoute(source, route).node;
+			Route route = diff.getRouteIndexes();
+			int c = route.last();
+			node = getFromVirtualRoute(source, route, route.size() - 1).node;
 			newNode = diff.getElement().clone();
 
-			if (c >= node.getChildren().size()) {
+			if (c >= node.childCount()) {
 				node.appendChild(newNode);
 			} else {
 				node.addChild(c, newNode);
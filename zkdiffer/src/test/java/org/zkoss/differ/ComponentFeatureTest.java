@@ -12,8 +12,18 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 package org.zkoss.differ;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
@@ -22,6 +32,7 @@ import org.zkoss.zk.ui.AbstractComponent;
 import org.zkoss.zul.A;
 import org.zkoss.zul.Div;
 import org.zkoss.zul.Hlayout;
+import org.zkoss.zul.Label;
 import org.zkoss.zul.Popup;
 import org.zkoss.zul.Span;
 import org.zkoss.zul.Vlayout;
@@ -48,7 +59,7 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent target = createNestedComponent(level);
 		int propertyLevel = rand.nextInt(4);
 		updateProperty(target, propertyLevel, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, propertyLevel);
 		assertEquals("mydiv", childAtLevel.getPropertyAccess("sclass")
@@ -62,7 +73,7 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent source = createNestedComponent(level);
 		AbstractComponent target = createNestedComponent(level);
 		updateAttribute(target, 4, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, 4);
 		assertEquals("mydiv", childAtLevel.getAttribute("sclass"));
@@ -75,7 +86,7 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent source = createNestedComponent(level);
 		AbstractComponent target = createNestedComponent(level);
 		updateClientAttribute(target, 3, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, 3);
 		assertEquals("mydiv", childAtLevel.getClientAttribute("sclass"));
@@ -88,7 +99,7 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent source = createNestedComponent(level);
 		AbstractComponent target = createNestedComponent(level);
 		updateWidgetAttribute(target, 2, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, 2);
 		assertEquals("mydiv", childAtLevel.getClientAttribute("sclass"));
@@ -101,7 +112,7 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent source = createNestedComponent(level);
 		AbstractComponent target = createNestedComponent(level);
 		updateWidgetListener(target, 2, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, 2);
 		assertEquals("mydiv", childAtLevel.getWidgetListener("sclass"));
@@ -114,12 +125,118 @@ public class ComponentFeatureTest extends ZKDifferTestBase {
 		AbstractComponent source = createNestedComponent(level);
 		AbstractComponent target = createNestedComponent(level);
 		updateWidgetOverride(target, 2, "sclass", "mydiv");
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		AbstractComponent childAtLevel = findChildAtLevel(source, 2);
 		assertEquals("mydiv", childAtLevel.getWidgetOverride("sclass"));
 	}
 
+	@Test
+	public void testCloneOnWrite() {
+		ComponentFeature feature = ComponentFeature.build(createNestedComponent(4), getOptions());
+		ComponentFeature clone = feature.clone();
+		// the children are shared, so change a clone of the child and replace it
+		ComponentFeature child = clone.getChildren().get(0).clone();
+		child.setProperty("sclass", "mydiv");
+		child.setAttribute("test", "abc");
+		clone.replaceChild(0, child);
+		assertEquals("mydiv", clone.getChildren().get(0).getProperties().get("sclass"));
+		assertNull(feature.getChildren().get(0).getProperties().get("sclass"));
+		assertNull(feature.getChildren().get(0).getAttributes().get("test"));
+
+		ComponentFeature featureChild = feature.getChildren().get(0).clone();
+		featureChild.appendChild(child.clone());
+		feature.replaceChild(0, featureChild);
+		assertEquals(1, clone.getChildren().get(0).getChildren().size());
+		assertEquals(2, feature.getChildren().get(0).getChildren().size());
+		assertEquals("mydiv", feature.getChildren().get(0).getChildren().get(1).getProperties().get("sclass"));
+	}
+
+	@Test
+	public void testHashCollision() {
+		// "Aa" and "BB" have the same hash code
+		ComponentFeature label1 = ComponentFeature.build(new Label("Aa"), getOptions());
+		ComponentFeature label2 = ComponentFeature.build(new Label("BB"), getOptions());
+		assertEquals(label1.structuralHash(), label2.structuralHash());
+		assertFalse(DiffFinder.roughlyEqual(label1, label2, new DescriptorTable(), new BitSet(), false, true));
+		assertFalse(DiffFinder.isSameTree(label1, label2));
+	}
+
+	@Test
+	public void testForkedDescriptorSymbols() {
+		Div root = new Div();
+		for (int i = 0; i < 50; i++) {
+			Label label = new Label("label " + i);
+			label.setSclass("cell" + i % 5);
+			root.appendChild(label);
+		}
+		List<ComponentFeature> children = ComponentFeature.build(root, getOptions()).getChildren();
+		// each forked diff task interns the same features by its own table
+		List<CompletableFuture<Void>> forks = new ArrayList<>();
+		for (int fork = 0; fork < 4; fork++) {
+			int offset = fork;
+			forks.add(CompletableFuture.runAsync(() -> {
+				for (int round = 0; round < 200; round++) {
+					DescriptorTable table = new DescriptorTable();
+					for (int i = 0; i < offset + round % 3; i++) {
+						table.intern("fork " + i);
+					}
+					for (ComponentFeature child : children) {
+						int[] symbols = child.getDescriptorSymbols(table);
+						assertEquals(table.intern(child.getWidgetName()), symbols[DescriptorTable.WIDGET]);
+						assertEquals(table.intern(child.getDescriptors().get(1)), symbols[DescriptorTable.SCLASS]);
+					}
+				}
+			}));
+		}
+		CompletableFuture.allOf(forks.toArray(new CompletableFuture[0])).join();
+	}
+
+	@Test
+	public void testReadOnlyGetters() {
+		ComponentFeature feature = ComponentFeature.build(createNestedComponent(2), getOptions());
+		ComponentFeature clone = feature.clone();
+		int hash = clone.structuralHash();
+		assertThrows(UnsupportedOperationException.class, () -> clone.getProperties().put("sclass", "mydiv"));
+		assertThrows(UnsupportedOperationException.class, () -> clone.getAttributes().put("test", "abc"));
+		assertThrows(UnsupportedOperationException.class, () -> clone.getChildren().remove(0));
+		assertThrows(UnsupportedOperationException.class, () -> clone.getDynamicProperties().clear());
+		// reading the children doesn't copy the ones shared with the origin
+		assertSame(feature.getChildren().get(0), clone.getChildren().get(0));
+
+		// the existing callers should change them by the setters instead, and then get them again
+		clone.setProperty("sclass", "mydiv");
+		clone.setAttribute("test", "abc");
+		assertEquals("mydiv", clone.getProperties().get("sclass"));
+		assertEquals("abc", clone.getAttributes().get("test"));
+		assertNotEquals(hash, clone.structuralHash());
+		assertEquals(hash, feature.structuralHash());
+		assertNull(feature.getAttributes().get("test"));
+	}
+
+	@Test
+	public void testLazyChildren() {
+		Div source = new Div();
+		Div target = new Div();
+		Div sourceChild = new Div();
+		Window targetChild = new Window();
+		sourceChild.appendChild(new Span());
+		targetChild.appendChild(new Span());
+		source.appendChild(sourceChild);
+		target.appendChild(targetChild);
+		ComponentFeature sourceFeature = ComponentFeature.build(source, getOptions());
+		ComponentFeature targetFeature = ComponentFeature.build(target, getOptions());
+		assertTrue(sourceFeature.hasPendingChildren());
+
+		List<Instruction> diff = Differ.diff(sourceFeature, targetFeature, DiffOptions.newBuilder()
+				.from(getOptions()).setEngine(DiffOptions.Engine.SINGLE_PASS).build());
+		assertEquals(1, diff.size());
+		assertEquals(Instruction.Action.replaceElement, diff.get(0).getAction());
+		// the replaced subtrees are never built
+		assertTrue(sourceFeature.getChildren().get(0).hasPendingChildren());
+		assertTrue(targetFeature.getChildren().get(0).hasPendingChildren());
+	}
+
 	private static void updateProperty(AbstractComponent component, int level,
 			String property, Object value) {
 		AbstractComponent current = findChildAtLevel(component, level);
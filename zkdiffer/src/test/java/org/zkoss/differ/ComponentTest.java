@@ -12,14 +12,34 @@ Copyright (C) 2023 Potix Corporation. All Rights Reserved.
 package org.zkoss.differ;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.jupiter.api.Test;
 
+import org.zkoss.zk.mock.DummyDesktop;
 import org.zkoss.zk.ui.AbstractComponent;
+import org.zkoss.zk.ui.Component;
+import org.zkoss.zk.ui.Executions;
 import org.zkoss.zk.ui.event.Events;
+import org.zkoss.zk.ui.sys.ContentRenderer;
+import org.zkoss.zk.ui.sys.ExecutionCtrl;
 import org.zkoss.zul.Button;
 import org.zkoss.zul.Div;
 import org.zkoss.zul.Hlayout;
@@ -38,7 +58,7 @@ public class ComponentTest extends ZKDifferTestBase {
 		AbstractComponent target = createComponent();
 		source.setAttribute("test", "abc");
 		assertEquals(redraw(() -> source), redraw(() -> target));
-		List<Instruction> diff = Differ.diff(source, target);
+		List<Instruction> diff = Differ.diff(source, target, getOptions());
 		assertEquals(1, diff.size());
 		assertEquals(diff.get(0).getAction(), Instruction.Action.removeAttribute);
 
@@ -51,7 +71,7 @@ public class ComponentTest extends ZKDifferTestBase {
 		AbstractComponent source = createComponent();
 		AbstractComponent target = createComponent();
 		target.appendChild(createZhtmlComponent());
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 	}
 
@@ -62,18 +82,18 @@ public class ComponentTest extends ZKDifferTestBase {
 
 		// insert to source, i.e. remove from source
 		source.insertBefore(new Label("new One"), source.getFirstChild());
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		// insert to target, i.e. add to source
 		target.insertBefore(new Label("new One"), target.getFirstChild());
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		// replace element
 		source.getFirstChild().detach();
 		source.insertBefore(new Button("new Button"), source.getFirstChild());
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		assertEquals(source.getFirstChild().getWidgetClass(), "zul.wgt.Label");
@@ -87,18 +107,18 @@ public class ComponentTest extends ZKDifferTestBase {
 
 		// add to source, i.e. remove from source
 		source.appendChild(new Label("new One"));
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		// add to target, i.e. add to source
 		target.appendChild(new Label("new One"));
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		// replace element
 		source.getLastChild().detach();
 		source.appendChild(new Button("new Button"));
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 
 		assertEquals(source.getLastChild().getWidgetClass(), "zul.wgt.Label");
@@ -110,7 +130,7 @@ public class ComponentTest extends ZKDifferTestBase {
 		Div target = new Div();
 		source.appendChild(createComponent());
 		target.appendChild(createZhtmlComponent());
-		Differ.merge(source, target);
+		Differ.merge(source, target, getOptions());
 		assertEquals(redraw(() -> source), redraw(() -> target));
 		assertEquals(source.getChildren().size(), 1);
 	}
@@ -122,12 +142,651 @@ public class ComponentTest extends ZKDifferTestBase {
 		source.appendChild(createComponent());
 		target.appendChild(createComponent());
 		target.getFirstChild().setClientAttribute("Test", "Abc");
-		Differ.mergeInner(source, target);
+		Differ.mergeInner(source, target, getOptions());
 		assertNotEquals(redraw(() -> source), redraw(() -> target));
 		assertEquals(redraw(() -> (AbstractComponent) source.getFirstChild()), redraw(() -> (AbstractComponent) target.getFirstChild()));
 		assertEquals("Abc", source.getFirstChild().getClientAttribute("Test"));
 	}
 
+	@Test
+	public void testKeyedChildren() {
+		Div source = new Div();
+		Div target = new Div();
+		// more than the max child count
+		for (int i = 0; i < 80; i++) {
+			source.appendChild(createKeyedLabel("row " + i));
+		}
+		for (int i = 79; i >= 0; i -= 2) {
+			target.appendChild(createKeyedLabel("row " + i));
+		}
+		target.insertBefore(createKeyedLabel("new row"), target.getChildren().get(10));
+		((Label) target.getLastChild()).setValue("changed");
+
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setKeyExtractor(KeyExtractor.ofAttribute("key")).build();
+		List<Instruction> diff = Differ.diff(source, target, options);
+		assertTrue(diff.stream().noneMatch(instruction -> instruction.getAction() == Instruction.Action.replaceElement));
+		assertEquals(1, diff.stream().filter(instruction -> instruction.getAction() == Instruction.Action.addElement).count());
+
+		Differ.patch(source, diff);
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testShuffledKeyedChildren() {
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setKeyExtractor(KeyExtractor.ofAttribute("key")).build();
+		for (int seed = 0; seed < 20; seed++) {
+			Random random = new Random(seed);
+			Div source = new Div();
+			Div target = new Div();
+			List<Integer> rows = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				source.appendChild(createKeyedLabel("row " + i));
+				if (random.nextInt(10) > 0) {
+					rows.add(i);
+				}
+			}
+			Collections.shuffle(rows, random);
+			for (int i : rows) {
+				target.appendChild(createKeyedLabel("row " + i));
+			}
+			for (int i = 0; i < 10; i++) {
+				target.insertBefore(createKeyedLabel("new row " + i),
+						target.getChildren().get(random.nextInt(target.getChildren().size())));
+			}
+			Map<Object, Component> rowsByKey = new HashMap<>();
+			source.getChildren().forEach(row -> rowsByKey.put(row.getAttribute("key"), row));
+			Differ.patch(source, Differ.diff(source, target, options));
+			assertEquals(redraw(() -> source), redraw(() -> target));
+			// the kept rows are relocated, not changed into the other rows
+			for (Component row : source.getChildren()) {
+				Component origin = rowsByKey.get(row.getAttribute("key"));
+				assertTrue(origin == null || origin == row);
+			}
+		}
+	}
+
+	@Test
+	public void testHasDifferences() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		assertFalse(Differ.hasDifferences(source, target, getOptions()));
+		assertFalse(Differ.hasInnerDifferences(source, target, getOptions()));
+
+		target.getLastChild().setClientAttribute("Test", "Abc");
+		assertTrue(Differ.hasDifferences(source, target, getOptions()));
+		assertTrue(Differ.hasInnerDifferences(source, target, getOptions()));
+
+		Differ.merge(source, target, getOptions());
+		assertFalse(Differ.hasDifferences(source, target, getOptions()));
+
+		// the root only
+		source.setAttribute("test", "abc");
+		assertTrue(Differ.hasDifferences(source, target, getOptions()));
+		assertFalse(Differ.hasInnerDifferences(source, target, getOptions()));
+
+		// the same with the component features
+		ComponentFeature sourceFeature = ComponentFeature.build(source, getOptions());
+		ComponentFeature targetFeature = ComponentFeature.build(target, getOptions());
+		assertTrue(Differ.hasDifferences(sourceFeature, targetFeature, getOptions()));
+		assertFalse(Differ.hasInnerDifferences(sourceFeature, targetFeature, getOptions()));
+	}
+
+	@Test
+	public void testDiffBudget() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		source.insertBefore(new Label("new One"), source.getFirstChild());
+		target.appendChild(new Button("new Button"));
+		target.getLastChild().setClientAttribute("Test", "Abc");
+		((AbstractComponent) target.getFirstChild()).setAttribute("test", "abc");
+
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setMaxVisitedNodes(1).build();
+		List<Instruction> diff = Differ.diff(source, target, options);
+		assertTrue(diff.stream().anyMatch(instruction -> instruction.getAction() == Instruction.Action.replaceElement));
+		Differ.patch(source, diff);
+		assertEquals(redraw(() -> source), redraw(() -> target));
+
+		target.appendChild(new Label("new Label"));
+		Differ.merge(source, target, DiffOptions.newBuilder().from(getOptions())
+				.setTimeBudget(Duration.ZERO).build());
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testDiffRange() {
+		Div source = new Div();
+		Div target = new Div();
+		for (int i = 0; i < 5; i++) {
+			source.appendChild(new Label("label " + i));
+			target.appendChild(new Label("label " + i));
+		}
+		// out of the range
+		((Label) source.getFirstChild()).setValue("unchanged");
+		((Label) target.getChildren().get(2)).setValue("changed");
+		target.insertBefore(new Button("new Button"), target.getChildren().get(3));
+
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setSourceRange(DiffRange.of(1, 4)).setTargetRange(DiffRange.of(1, 5)).build();
+		Differ.merge(source, target, options);
+		assertEquals("unchanged", ((Label) source.getFirstChild()).getValue());
+		assertEquals("changed", ((Label) source.getChildren().get(2)).getValue());
+		assertEquals("zul.wgt.Button", source.getChildren().get(3).getWidgetClass());
+		assertEquals(6, source.getChildren().size());
+	}
+
+	@Test
+	public void testStreamingDiff() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		source.insertBefore(new Label("new One"), source.getFirstChild());
+		target.appendChild(new Button("new Button"));
+		target.getFirstChild().setClientAttribute("Test", "Abc");
+
+		List<Instruction> diff = Differ.diff(source, target, getOptions());
+		List<Instruction> streamed = new ArrayList<>();
+		Differ.diff(source, target, getOptions(), instruction -> {
+			streamed.add(instruction);
+			// patch on the fly
+			assertTrue(Differ.patch(source, Collections.singletonList(instruction)));
+		});
+		assertEquals(diff.size(), streamed.size());
+		for (int i = 0; i < diff.size(); i++) {
+			assertEquals(diff.get(i).getAction(), streamed.get(i).getAction());
+			assertEquals(diff.get(i).getRoute(), streamed.get(i).getRoute());
+		}
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testDiffSession() {
+		AbstractComponent source = createComponent();
+		DiffSession session = new DiffSession(source, getOptions());
+
+		AbstractComponent target = createComponent();
+		target.appendChild(new Button("new Button"));
+		assertTrue(session.merge(target));
+		assertEquals(redraw(() -> source), redraw(() -> target));
+
+		// changed outside of the session
+		Label label = (Label) source.getFirstChild();
+		label.setValue("changed");
+		session.invalidate(label);
+		AbstractComponent target2 = createComponent();
+		((Label) target2.getLastChild()).setValue("changed too");
+		assertTrue(session.merge(target2));
+		assertEquals(redraw(() -> source), redraw(() -> target2));
+
+		// a different number of children is detected without invalidating
+		source.appendChild(new Label("extra"));
+		AbstractComponent target3 = createComponent();
+		assertTrue(session.mergeInner(target3));
+		assertEquals(redraw(() -> source), redraw(() -> target3));
+	}
+
+	@Test
+	public void testDiffSessionWithoutInvalidate() {
+		AbstractComponent source = createComponent();
+		DiffSession session = new DiffSession(source, getOptions());
+		assertTrue(session.merge(createComponent()));
+
+		// changed outside of the session but not invalidated, so it's stale
+		Label label = (Label) source.getFirstChild();
+		label.setValue("changed");
+		AbstractComponent target = createComponent();
+		assertTrue(session.merge(target));
+		assertEquals("changed", label.getValue());
+		assertNotEquals(redraw(() -> source), redraw(() -> target));
+
+		session.invalidate(label);
+		AbstractComponent target2 = createComponent();
+		assertTrue(session.merge(target2));
+		assertEquals(redraw(() -> source), redraw(() -> target2));
+	}
+
+	@Test
+	public void testDiffSessionKeepsTarget() {
+		AbstractComponent source = createComponent();
+		DiffSession session = new DiffSession(source, getOptions());
+		AbstractComponent target = createComponent();
+		Div added = new Div();
+		added.appendChild(new Label("merged"));
+		target.appendChild(added);
+		assertTrue(session.merge(target));
+
+		// the merged target is changed and merged again
+		((Label) added.getFirstChild()).setValue("changed later");
+		added.appendChild(new Label("appended later"));
+		assertTrue(session.merge(target));
+		assertEquals(redraw(() -> source), redraw(() -> target));
+		assertTrue(session.mergeInner(target));
+		assertEquals(redraw(() -> source), redraw(() -> target));
+
+		assertThrows(IllegalArgumentException.class, () -> new DiffSession(null, getOptions()));
+		assertThrows(UnsupportedOperationException.class, () -> new DiffSession(source,
+				DiffOptions.newBuilder().from(getOptions()).setSourceRange(DiffRange.of(0, 1)).build()));
+	}
+
+	@Test
+	public void testPropertyFilter() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		((Label) target.getFirstChild()).setValue("changed");
+		target.setAttribute("model", new Object());
+		target.getLastChild().setClientAttribute("Test", "Abc");
+
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setPropertyFilter(PropertyFilter.exclude("label", PropertyFilter.Type.PROPERTY, "value")
+						.and(PropertyFilter.exclude(PropertyFilter.Type.ATTRIBUTE, "model"))
+						.and(PropertyFilter.excludePrefix(PropertyFilter.Type.CLIENT_ATTRIBUTE, "T")))
+				.build();
+		assertFalse(Differ.hasDifferences(source, target, options));
+
+		target.setAttribute("test", "abc");
+		List<Instruction> diff = Differ.diff(source, target, options);
+		assertEquals(1, diff.size());
+		assertEquals(Instruction.Action.addAttribute, diff.get(0).getAction());
+	}
+
+	@Test
+	public void testPatchWideTree() {
+		int[] steps = new int[1];
+		Div source = new Div();
+		Div target = new Div();
+		for (int i = 0; i < 100; i++) {
+			Div row1 = new Div() {
+				public Component getNextSibling() {
+					steps[0]++;
+					return super.getNextSibling();
+				}
+
+				public Component getPreviousSibling() {
+					steps[0]++;
+					return super.getPreviousSibling();
+				}
+			};
+			Div row2 = new Div();
+			for (int j = 0; j < 3; j++) {
+				row1.appendChild(new Label("cell " + i + "/" + j));
+				row2.appendChild(new Label(i % 3 == j ? "changed " + i : "cell " + i + "/" + j));
+			}
+			if (i % 10 == 0) {
+				row2.getLastChild().detach();
+			} else if (i % 10 == 5) {
+				row2.insertBefore(new Button("new " + i), row2.getFirstChild());
+			}
+			source.appendChild(row1);
+			target.appendChild(row2);
+		}
+		// diff the cells of all rows, instead of replacing the rows beyond the max child count
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions()).setMaxChildCount(0).build();
+		List<Instruction> diff = Differ.diff(source, target, options);
+		steps[0] = 0;
+		assertTrue(Differ.patch(source, diff, options));
+		// the row of the previous route, or its replacement, is reused to reach
+		// the next row, instead of walking from the first or the last row
+		assertTrue(steps[0] < 2 * 100, steps[0] + " steps");
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testRemoveProperty() {
+		for (int i = 0; i < 2; i++) { // the second one with the cached default values
+			AbstractComponent source = createComponent();
+			AbstractComponent target = createComponent();
+			((Label) source.getFirstChild()).setSclass("mylabel");
+			((Label) source.getLastChild()).setStyle("color: red");
+			Differ.merge(source, target, getOptions());
+			assertEquals(redraw(() -> source), redraw(() -> target));
+		}
+	}
+
+	@Test
+	public void testWarmUp() {
+		Differ.warmUp(Div.class, Label.class, WarmUpButton.class);
+		// all the setters are resolved before the first patch
+		Set<String> resolved = PropertyAccessorRegistry.getResolvedProperties(WarmUpButton.class);
+		assertTrue(resolved.containsAll(Arrays.asList("label", "disabled", "tabindex")));
+		int size = resolved.size();
+
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		source.appendChild(new WarmUpButton("Button"));
+		WarmUpButton button = new WarmUpButton("Button");
+		button.setDisabled(true);
+		button.setTabindex(2);
+		target.appendChild(button);
+		List<Instruction> diff = Differ.diff(source, target, getOptions());
+		assertTrue(diff.stream().anyMatch(instruction -> "disabled".equals(instruction.getName())));
+		assertTrue(Differ.patch(source, diff, getOptions()));
+		assertEquals(redraw(() -> source), redraw(() -> target));
+		// and no more is resolved by patching
+		assertEquals(size, resolved.size());
+	}
+
+	/**
+	 * A button class used by {@link #testWarmUp()} only, whose accessors aren't
+	 * resolved by the other tests.
+	 */
+	public static class WarmUpButton extends Button {
+		public WarmUpButton() {
+		}
+
+		public WarmUpButton(String label) {
+			super(label);
+		}
+	}
+
+	@Test
+	public void testPatchBatch() {
+		int[] count = new int[1];
+		Div source = new Div();
+		source.appendChild(new Label("Test") {
+			public void setSclass(String sclass) {
+				count[0]++;
+				super.setSclass(sclass);
+			}
+		});
+		List<Instruction> diffs = new ArrayList<>();
+		diffs.add(Instruction.newBuilder(Instruction.Action.addProperty).setRoute(Collections.singletonList(0))
+				.setName("sclass").setValue("first").build());
+		diffs.add(Instruction.newBuilder(Instruction.Action.addAttribute).setRoute(Collections.singletonList(0))
+				.setName("key").setValue("value").build());
+		diffs.add(Instruction.newBuilder(Instruction.Action.modifyProperty).setRoute(Collections.singletonList(0))
+				.setName("sclass").setOldValue("first").setNewValue("second").build());
+		assertTrue(Differ.patch(source, diffs));
+		Label label = (Label) source.getFirstChild();
+		assertEquals(1, count[0]);
+		assertEquals("second", label.getSclass());
+		assertEquals("value", label.getAttribute("key"));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testRouteBuilder() {
+		Instruction appended = Instruction.newBuilder(Instruction.Action.removeElement)
+				.setRoute(Collections.singletonList(0)).addRoute(1).addRoute(2, 3)
+				.addAllRoute(Collections.singletonList(4)).build();
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), appended.getRoute());
+		assertEquals(Route.of(0, 1, 2, 3, 4), appended.getRouteIndexes());
+		assertEquals(4, appended.getRouteIndexes().last());
+
+		Instruction copied = new Instruction.Builder().from(appended).build();
+		assertEquals(appended, copied);
+		assertEquals(appended.getRoute(), copied.getRoute());
+
+		// appended to the route copied or set by the other setters
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5),
+				new Instruction.Builder().from(appended).addRoute(5).build().getRoute());
+		assertEquals(Arrays.asList(7, 8),
+				Instruction.newBuilder(Instruction.Action.removeElement)
+						.setRouteIndexes(Route.of(7)).addRoute(8).build().getRoute());
+		assertEquals(Arrays.asList(9),
+				Instruction.newBuilder(Instruction.Action.removeElement).from(appended)
+						.setRoute(Collections.singletonList(9)).build().getRoute());
+	}
+
+	@Test
+	public void testRelocateGroup() {
+		int[] inserted = new int[1];
+		int[] removed = new int[1];
+		Div source = new Div() {
+			public boolean insertBefore(Component newChild, Component refChild) {
+				inserted[0]++;
+				return super.insertBefore(newChild, refChild);
+			}
+
+			public boolean removeChild(Component child) {
+				removed[0]++;
+				return super.removeChild(child);
+			}
+		};
+		Div target = new Div();
+		List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			source.appendChild(new Label("Row " + i));
+			order.add(i);
+		}
+		// move the large blocks, and the small ones in between
+		Collections.rotate(order.subList(0, 30), 5);
+		Collections.rotate(order.subList(10, 40), -25);
+		Collections.swap(order, 3, 36);
+		for (int i : order) {
+			target.appendChild(new Label("Row " + i));
+		}
+		List<Instruction> diff = Differ.diff(source, target, getOptions());
+		if (getOptions().getEngine() == DiffOptions.Engine.ITERATIVE) {
+			assertTrue(diff.stream().anyMatch(instruction -> instruction.getAction() == Instruction.Action.relocateGroup));
+		}
+		int expectedInserted = 0, expectedRemoved = 0;
+		for (Instruction instruction : diff) {
+			switch (instruction.getAction()) {
+			case relocateGroup:
+				// either the group or the children it passes over are moved
+				// by insertBefore only, instead of removing and inserting each child
+				expectedInserted += Math.min(instruction.getGroupLength(),
+						Math.abs(instruction.getTo() - instruction.getFrom()));
+				break;
+			case addElement:
+				expectedInserted++;
+				break;
+			case removeElement:
+				expectedRemoved++;
+				break;
+			default:
+				break;
+			}
+		}
+		inserted[0] = removed[0] = 0;
+		assertTrue(Differ.patch(source, diff, getOptions()));
+		assertEquals(expectedInserted, inserted[0]);
+		assertEquals(expectedRemoved, removed[0]);
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testInstantiateFromSnapshot() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		Div div = new Div();
+		div.setSclass("mydiv");
+		div.setAttribute("key", "value");
+		div.setClientAttribute("data-key", "value");
+		div.setWidgetOverride("doClick_", "function (evt) {this.$doClick_(evt);}");
+		Label label = new Label("added");
+		label.setStyle("color: red");
+		div.appendChild(label);
+		Button button = new Button("listened");
+		button.addEventListener(Events.ON_CLICK, event -> {});
+		div.appendChild(button);
+		target.appendChild(div);
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setInstantiateFromSnapshot(true).build();
+		Differ.merge(source, target, options);
+		assertEquals(redraw(() -> source), redraw(() -> target));
+		assertEquals("value", source.getLastChild().getAttribute("key"));
+		// cloned with the event listener
+		assertTrue(Events.isListened(source.getLastChild().getLastChild(), Events.ON_CLICK, true));
+	}
+
+	@Test
+	public void testInstantiateFallback() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		Div div = new MarkedDiv("marked");
+		div.appendChild(new Label("added"));
+		target.appendChild(div);
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions())
+				.setInstantiateFromSnapshot(true).build();
+		Differ.merge(source, target, options);
+		assertEquals(redraw(() -> source), redraw(() -> target));
+		// the mark cannot be set back, so it's cloned instead
+		assertEquals("marked", ((MarkedDiv) source.getLastChild()).getMark());
+
+		// the other failures of a setter aren't hidden
+		ComponentFeature feature = ComponentFeature.build(new RejectingDiv("rejected"), options);
+		assertThrows(IllegalStateException.class, feature::instantiate);
+	}
+
+	/**
+	 * A div rendering a property without a setter.
+	 */
+	public static class MarkedDiv extends Div {
+		private String _mark;
+
+		public MarkedDiv() {
+		}
+
+		public MarkedDiv(String mark) {
+			_mark = mark;
+		}
+
+		public String getMark() {
+			return _mark;
+		}
+
+		protected void renderProperties(ContentRenderer renderer) throws IOException {
+			super.renderProperties(renderer);
+			render(renderer, "mark", _mark);
+		}
+	}
+
+	/**
+	 * A div rendering a property whose setter always fails.
+	 */
+	public static class RejectingDiv extends MarkedDiv {
+		public RejectingDiv() {
+		}
+
+		public RejectingDiv(String mark) {
+			super(mark);
+		}
+
+		public void setMark(String mark) {
+			throw new IllegalStateException("Cannot change the mark");
+		}
+	}
+
+	@Test
+	public void testPreparedPatch() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		((Label) target.getFirstChild()).setValue("changed");
+		for (int i = 0; i < 20; i++) {
+			Div div = new Div();
+			div.appendChild(new Label("added " + i));
+			target.appendChild(div);
+		}
+		List<Instruction> diffs = Differ.diff(source, target, getOptions());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			PreparedPatch patch = Differ.prepare(diffs, getOptions(), executor).join();
+			assertTrue(patch.apply(source));
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testPreparedPatchOfLiveSnapshot() {
+		DiffOptions options = DiffOptions.newBuilder().from(getOptions()).setCloneSnapshot(false).build();
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		Label added = new Label("added");
+		target.appendChild(added);
+		List<Instruction> diffs = Differ.diff(source, target, options);
+		List<Runnable> tasks = new ArrayList<>();
+		CompletableFuture<PreparedPatch> patch = Differ.prepare(diffs, options, tasks::add);
+		// the live components are cloned on the caller's thread, not on the executor
+		assertTrue(tasks.isEmpty());
+		assertTrue(patch.isDone());
+
+		added.setValue("changed later");
+		assertTrue(patch.join().apply(source));
+		assertEquals("added", ((Label) source.getLastChild()).getValue());
+
+		// the cloned snapshots are built on the executor without blocking the caller
+		DiffOptions cloned = DiffOptions.newBuilder().from(options).setCloneSnapshot(true).build();
+		AbstractComponent another = createComponent();
+		CompletableFuture<PreparedPatch> pending = Differ.prepare(
+				Differ.diff(another, target, cloned), cloned, tasks::add);
+		assertFalse(pending.isDone());
+		assertEquals(1, tasks.size());
+		tasks.forEach(Runnable::run);
+		assertTrue(pending.join().apply(another));
+		assertEquals(redraw(() -> another), redraw(() -> target));
+	}
+
+	@Test
+	public void testMergeAsync() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		((Label) target.getLastChild()).setValue("changed");
+		Div div = new Div();
+		div.appendChild(new Label("added"));
+		target.insertBefore(div, target.getFirstChild());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertTrue(Differ.mergeAsync(source, target, getOptions(), executor).join());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testMergeAsyncScheduled() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		Label added = new Label("added");
+		target.appendChild(added);
+		source.setPage(((ExecutionCtrl) Executions.getCurrent()).getCurrentPage());
+		DummyDesktop desktop = (DummyDesktop) source.getDesktop();
+		desktop.enableServerPush(true);
+		List<Runnable> tasks = new ArrayList<>();
+		CompletableFuture<Boolean> result = Differ.mergeAsync(source, target, getOptions(), tasks::add);
+		// the target can be changed once the snapshot is taken
+		added.setValue("changed later");
+		tasks.forEach(Runnable::run);
+		// patched in the execution of the desktop only
+		assertFalse(result.isDone());
+		assertEquals(1, desktop.runScheduled());
+		assertTrue(result.join());
+		assertEquals("added", ((Label) source.getLastChild()).getValue());
+		added.setValue("added");
+		assertEquals(redraw(() -> source), redraw(() -> target));
+	}
+
+	@Test
+	public void testMergeAsyncWithoutServerPush() {
+		AbstractComponent source = createComponent();
+		AbstractComponent target = createComponent();
+		((Label) target.getLastChild()).setValue("changed");
+		source.setPage(((ExecutionCtrl) Executions.getCurrent()).getCurrentPage());
+		DummyDesktop desktop = (DummyDesktop) source.getDesktop();
+		assertThrows(RuntimeException.class,
+				() -> Differ.mergeAsync(source, target, getOptions(), Runnable::run));
+
+		// disabled before it's scheduled
+		desktop.enableServerPush(true);
+		List<Runnable> tasks = new ArrayList<>();
+		CompletableFuture<Boolean> result = Differ.mergeAsync(source, target, getOptions(), tasks::add);
+		desktop.enableServerPush(false);
+		tasks.forEach(Runnable::run);
+		assertTrue(result.isCompletedExceptionally());
+		assertEquals(0, desktop.runScheduled());
+		assertEquals("Test 2", ((Label) source.getLastChild()).getValue());
+	}
+
+	private static AbstractComponent createKeyedLabel(String value) {
+		Label label = new Label(value);
+		label.setAttribute("key", value);
+		return label;
+	}
+
 	private static AbstractComponent createComponent() {
 		Div div = new Div();
 		div.appendChild(new Label("Test 1"));
@@ -0,0 +1,102 @@
+/* DiffAllocationBenchmark.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		3:10 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import org.zkoss.zul.Div;
+import org.zkoss.zul.Label;
+
+/**
+ * Measures the bytes allocated per diff of the shuffled groups, which is where
+ * the scratch table of {@code findCommonSubsets} is used.
+ * <p>It's not a part of the unit tests, run it with the environment variable
+ * {@code ZKDIFFER_BENCHMARK=true}, e.g. to compare before and after a change,
+ * and the results are published as the report entries of JUnit.
+ * @author jumperchen
+ */
+@Tag("benchmark")
+@EnabledIfEnvironmentVariable(named = "ZKDIFFER_BENCHMARK", matches = "true")
+public class DiffAllocationBenchmark extends ZKDifferTestBase {
+	private static final int WARM_UP = 5;
+	private static final int ITERATIONS = 30;
+
+	@Test
+	public void testIterative(TestReporter reporter) {
+		report(reporter, "iterative", DiffOptions.DEFAULT);
+	}
+
+	@Test
+	public void testSinglePass(TestReporter reporter) {
+		report(reporter, "single pass", DiffOptions.newBuilder().setEngine(DiffOptions.Engine.SINGLE_PASS).build());
+	}
+
+	private static void report(TestReporter reporter, String name, DiffOptions options) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "No allocation counter");
+		com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) bean;
+		Div source = createRows(1, false);
+		Div target = createRows(1, true);
+		long total = 0;
+		int size = 0;
+		for (int i = 0; i < WARM_UP + ITERATIONS; i++) {
+			// the snapshots are excluded, only the diffing is measured
+			ComponentFeature sourceFeature = ComponentFeature.build(source, options);
+			ComponentFeature targetFeature = ComponentFeature.build(target, options);
+			long before = counter.getCurrentThreadAllocatedBytes();
+			size = Differ.diff(sourceFeature, targetFeature, options).size();
+			long after = counter.getCurrentThreadAllocatedBytes();
+			if (i >= WARM_UP) {
+				total += after - before;
+			}
+		}
+		reporter.publishEntry(name, total / ITERATIONS + " bytes/diff, " + size + " instructions");
+	}
+
+	// 49 rows of 4 labels, whose groups are shuffled and one label is changed
+	private static Div createRows(long seed, boolean shuffle) {
+		Random random = new Random(seed);
+		List<Div> rows = new ArrayList<>();
+		for (int i = 0; i < 49; i++) {
+			Div row = new Div();
+			row.setSclass("row");
+			for (int j = 0; j < 4; j++) {
+				row.appendChild(new Label("cell " + i + "/" + j));
+			}
+			rows.add(row);
+		}
+		if (shuffle) {
+			for (int k = 0; k < 6; k++) {
+				int from = random.nextInt(40);
+				int to = random.nextInt(40);
+				List<Div> group = new ArrayList<>(rows.subList(from, from + 5));
+				rows.removeAll(group);
+				rows.addAll(Math.min(to, rows.size()), group);
+			}
+			((Label) rows.get(3).getFirstChild()).setValue("changed");
+		}
+		Div root = new Div();
+		rows.forEach(root::appendChild);
+		return root;
+	}
+}
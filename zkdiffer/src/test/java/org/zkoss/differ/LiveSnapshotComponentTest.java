@@ -0,0 +1,24 @@
+/* LiveSnapshotComponentTest.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		10:15 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+/**
+ * Test component structure with the component features built from the live
+ * component tree without cloning.
+ * @author jumperchen
+ * @see DiffOptions#isCloneSnapshot()
+ */
+public class LiveSnapshotComponentTest extends ComponentTest {
+	protected DiffOptions getOptions() {
+		return DiffOptions.newBuilder().setCloneSnapshot(false).build();
+	}
+}
@@ -0,0 +1,35 @@
+/* ParallelComponentTest.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		9:40 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterAll;
+
+/**
+ * Test component structure with the {@link DiffOptions.Engine#SINGLE_PASS} engine
+ * diffing every paired subtree in a fork/join pool.
+ * @author jumperchen
+ */
+public class ParallelComponentTest extends ComponentTest {
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	@AfterAll
+	public static void shutdown() {
+		POOL.shutdown();
+	}
+
+	protected DiffOptions getOptions() {
+		return DiffOptions.newBuilder().setEngine(DiffOptions.Engine.SINGLE_PASS)
+				.setForkJoinPool(POOL).setParallelThreshold(1).build();
+	}
+}
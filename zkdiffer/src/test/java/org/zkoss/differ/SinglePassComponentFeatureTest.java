@@ -0,0 +1,22 @@
+/* SinglePassComponentFeatureTest.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		3:05 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+/**
+ * Test for component's features with the {@link DiffOptions.Engine#SINGLE_PASS} engine.
+ * @author jumperchen
+ */
+public class SinglePassComponentFeatureTest extends ComponentFeatureTest {
+	protected DiffOptions getOptions() {
+		return DiffOptions.newBuilder().setEngine(DiffOptions.Engine.SINGLE_PASS).build();
+	}
+}
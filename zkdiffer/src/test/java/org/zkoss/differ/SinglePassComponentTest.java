@@ -0,0 +1,22 @@
+/* SinglePassComponentTest.java
+
+	Purpose:
+		
+	Description:
+		
+	History:
+		3:02 PM 2026/10/18, Created by jumperchen
+
+Copyright (C) 2026 Potix Corporation. All Rights Reserved.
+*/
+package org.zkoss.differ;
+
+/**
+ * Test component structure with the {@link DiffOptions.Engine#SINGLE_PASS} engine.
+ * @author jumperchen
+ */
+public class SinglePassComponentTest extends ComponentTest {
+	protected DiffOptions getOptions() {
+		return DiffOptions.newBuilder().setEngine(DiffOptions.Engine.SINGLE_PASS).build();
+	}
+}
@@ -81,6 +81,13 @@ public class ZKDifferTestBase {
 		WebAppsCtrl.setCurrent(null);
 	}
 
+	/**
+	 * Returns the diff options for the test cases.
+	 */
+	protected DiffOptions getOptions() {
+		return DiffOptions.DEFAULT;
+	}
+
 	public String redraw(Supplier<? extends AbstractComponent> supplier) {
 		StringWriter stringWriter = new StringWriter(INIT_BUFFER_SIZE);
 		try {
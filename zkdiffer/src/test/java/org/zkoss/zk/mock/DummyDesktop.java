@@ -11,10 +11,16 @@ Copyright (C) 2021 Potix Corporation. All Rights Reserved.
 */
 package org.zkoss.zk.mock;
 
+import java.util.LinkedList;
+import java.util.Queue;
+
 import org.zkoss.zk.ui.Desktop;
 import org.zkoss.zk.ui.Execution;
 import org.zkoss.zk.ui.Executions;
+import org.zkoss.zk.ui.UiException;
 import org.zkoss.zk.ui.WebApp;
+import org.zkoss.zk.ui.event.Event;
+import org.zkoss.zk.ui.event.EventListener;
 import org.zkoss.zk.ui.impl.DesktopImpl;
 
 /**
@@ -22,10 +28,56 @@ import org.zkoss.zk.ui.impl.DesktopImpl;
  * @author jumperchen
  */
 public class DummyDesktop extends DesktopImpl {
+	private boolean _serverPushEnabled;
+	// the scheduled tasks, which are run by runScheduled() as the event thread
+	private final Queue<Runnable> _scheduled = new LinkedList<>();
+
 	public DummyDesktop(WebApp webApp) {
 		super(webApp, "", "", "ajax", null);
 	}
 
+	public boolean enableServerPush(boolean enable) {
+		boolean old = _serverPushEnabled;
+		_serverPushEnabled = enable;
+		return old != enable;
+	}
+
+	public boolean isServerPushEnabled() {
+		return _serverPushEnabled;
+	}
+
+	public <T extends Event> void scheduleServerPush(EventListener<T> listener, T event) {
+		if (!_serverPushEnabled) {
+			super.scheduleServerPush(listener, event); // throws as disabled
+		}
+		synchronized (_scheduled) {
+			_scheduled.add(() -> {
+				try {
+					listener.onEvent(event);
+				} catch (Exception e) {
+					throw UiException.Aide.wrap(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the scheduled tasks on the caller's thread, and returns the count of them.
+	 */
+	public int runScheduled() {
+		int count = 0;
+		for (Runnable task; (task = pollScheduled()) != null; count++) {
+			task.run();
+		}
+		return count;
+	}
+
+	private Runnable pollScheduled() {
+		synchronized (_scheduled) {
+			return _scheduled.poll();
+		}
+	}
+
 	public Execution getExecution() {
 		return Executions.getCurrent();
 	}